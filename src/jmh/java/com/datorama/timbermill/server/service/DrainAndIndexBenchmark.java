@@ -0,0 +1,77 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+
+import com.datorama.oss.timbermill.TaskIndexer;
+import com.datorama.oss.timbermill.common.ElasticsearchUtil;
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * {@link ElasticsearchUtil#drainAndIndex} over a queue filled with a backlog, with a no-op {@link TaskIndexer},
+ * isolating the drain loop from Elasticsearch.
+ * drainAndIndex sleeps {@link ElasticsearchUtil#THREAD_SLEEP} after each batch it drains, and the queue has to be
+ * filled again for every call. Both are part of the primary score, so the time of the drain loop itself is reported by
+ * the {@code netNanosPerEvent} counter: drainAndIndex's time without its sleeps, per drained event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DrainAndIndexBenchmark {
+
+	private static final long SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(ElasticsearchUtil.THREAD_SLEEP);
+
+	@Param({"1000", "100000"})
+	int tasksAmount;
+
+	@Param({EventQueueUtil.LINKED, EventQueueUtil.RING})
+	String queueStrategy;
+
+	private TaskIndexer taskIndexer;
+	private List<Event> events;
+	private BlockingQueue<Event> eventsQueue;
+	private BlockingQueue<Event> observedQueue;
+	private int drainedBatches;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class DrainCounters {
+		public double netNanosPerEvent;
+		private long netNanos;
+		private long drainedEvents;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			netNanosPerEvent = 0;
+			netNanos = 0;
+			drainedEvents = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		taskIndexer = Mockito.mock(TaskIndexer.class);
+		events = TestEvents.tasks(tasksAmount, "drain_benchmark");
+		eventsQueue = EventQueueUtil.getEventQueue(queueStrategy, events.size());
+		observedQueue = new DrainObservingQueue(eventsQueue, drained -> drainedBatches++);
+	}
+
+	@Benchmark
+	public int drainAndIndex(DrainCounters counters) {
+		eventsQueue.addAll(events);
+		drainedBatches = 0;
+		long start = System.nanoTime();
+		ElasticsearchUtil.drainAndIndex(observedQueue, taskIndexer);
+		counters.netNanos += System.nanoTime() - start - drainedBatches * SLEEP_NANOS;
+		counters.drainedEvents += events.size();
+		counters.netNanosPerEvent = (double) counters.netNanos / counters.drainedEvents;
+		return eventsQueue.size();
+	}
+}
@@ -0,0 +1,69 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.datorama.oss.timbermill.unit.EventsList;
+import com.datorama.oss.timbermill.unit.EventsWrapper;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Request body binding for /events, /events/v2 and the Smile body of /events/v3 at different batch sizes.
+ * Setup prints the body sizes, so bytes on the wire can be compared along with throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EventsDeserializationBenchmark {
+
+	@Param({"10", "1000", "30000"})
+	int tasksAmount;
+
+	private byte[] eventsWrapperJson;
+	private byte[] eventsListJson;
+	private byte[] eventsSmile;
+
+	@Setup
+	public void setUp() throws IOException {
+		List<Event> events = TestEvents.tasks(tasksAmount, "deserialization_benchmark");
+		eventsWrapperJson = TestEvents.eventsWrapperJson("batch", events);
+		eventsListJson = TestEvents.eventsListJson(events);
+		eventsSmile = EventsCodec.encode(events);
+		System.out.printf("%n%d events: json %d bytes (gzipped %d), smile %d bytes (gzipped %d)%n", events.size(),
+				eventsListJson.length, TestEvents.gzip(eventsListJson).length, eventsSmile.length, TestEvents.gzip(eventsSmile).length);
+	}
+
+	@Benchmark
+	public EventsWrapper eventsWrapper() throws IOException {
+		return TestEvents.JSON_MAPPER.readValue(eventsWrapperJson, EventsWrapper.class);
+	}
+
+	@Benchmark
+	public EventsList eventsList() throws IOException {
+		return TestEvents.JSON_MAPPER.readValue(eventsListJson, EventsList.class);
+	}
+
+	@Benchmark
+	public void smileStream(Blackhole blackhole) throws IOException {
+		try (JsonParser parser = EventsCodec.createSmileParser(new ByteArrayInputStream(eventsSmile))) {
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_ARRAY) {
+				token = parser.nextToken();
+			}
+			while (token != null && token != JsonToken.END_ARRAY) {
+				blackhole.consume(EventsCodec.readEvent(parser));
+				token = parser.nextToken();
+			}
+		}
+	}
+}
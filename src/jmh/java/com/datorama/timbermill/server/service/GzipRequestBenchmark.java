@@ -0,0 +1,65 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.datorama.oss.timbermill.unit.EventsList;
+
+/**
+ * Decompression of gzipped request bodies through {@link GzippedInputStreamWrapper}, alone and followed by binding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GzipRequestBenchmark {
+
+	@Param({"1000", "50000"})
+	int tasksAmount;
+
+	private byte[] gzippedBody;
+	private final byte[] readBuffer = new byte[8192];
+
+	@Setup
+	public void setUp() throws IOException {
+		gzippedBody = TestEvents.gzip(TestEvents.eventsListJson(TestEvents.tasks(tasksAmount, "gzip_benchmark")));
+	}
+
+	@Benchmark
+	public long inflate() throws IOException {
+		GzippedInputStreamWrapper request = new GzippedInputStreamWrapper(request());
+		long total = 0;
+		try (InputStream in = request.getInputStream()) {
+			int n;
+			while ((n = in.read(readBuffer)) != -1) {
+				total += n;
+			}
+		}
+		return total;
+	}
+
+	@Benchmark
+	public void inflateAndBind(Blackhole blackhole) throws IOException {
+		GzippedInputStreamWrapper request = new GzippedInputStreamWrapper(request());
+		try (InputStream in = request.getInputStream()) {
+			blackhole.consume(TestEvents.JSON_MAPPER.readValue(in, EventsList.class));
+		}
+	}
+
+	private HttpServletRequest request() throws IOException {
+		HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+		ServletInputStream body = new ByteArrayServletInputStream(gzippedBody);
+		Mockito.when(request.getInputStream()).thenReturn(body);
+		return request;
+	}
+}
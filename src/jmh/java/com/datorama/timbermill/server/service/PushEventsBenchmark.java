@@ -0,0 +1,67 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.datorama.oss.timbermill.pipe.LocalOutputPipe;
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * What {@code TimbermillService.handleEvents} does per event: several receiving threads push into the events queue
+ * through {@link LocalOutputPipe#pushEventToQueues} while one indexing thread drains it in batches.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PushEventsBenchmark {
+
+	private static final int DRAIN_BATCH = 1000;
+
+	@Param({EventQueueUtil.LINKED, EventQueueUtil.RING})
+	String queueStrategy;
+
+	private BlockingQueue<Event> eventsQueue;
+	private BlockingQueue<Event> overflowedQueue;
+	private List<Event> events;
+
+	@Setup
+	public void setUp() {
+		eventsQueue = EventQueueUtil.getEventQueue(queueStrategy, 1 << 20);
+		overflowedQueue = EventQueueUtil.getEventQueue(queueStrategy, 1 << 10);
+		events = TestEvents.tasks(1000, "push_benchmark");
+	}
+
+	@State(Scope.Thread)
+	public static class ProducerState {
+		int next;
+	}
+
+	@State(Scope.Thread)
+	public static class ConsumerState {
+		final List<Event> batch = new ArrayList<>(DRAIN_BATCH);
+	}
+
+	@Benchmark
+	@Group("pipeline")
+	@GroupThreads(4)
+	public void push(ProducerState state) {
+		Event event = events.get(state.next++ % events.size());
+		LocalOutputPipe.pushEventToQueues(null, eventsQueue, overflowedQueue, event);
+	}
+
+	@Benchmark
+	@Group("pipeline")
+	@GroupThreads(1)
+	public void drain(ConsumerState state, Blackhole blackhole) {
+		blackhole.consume(eventsQueue.drainTo(state.batch, DRAIN_BATCH));
+		state.batch.clear();
+	}
+}
@@ -0,0 +1,89 @@
+package com.datorama.timbermill.server.service;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Builds a backlog of {@value #BACKLOG} distinct events in the events queue and drains it in indexing sized batches,
+ * reporting the heap retained by the full backlog and the GC time spent, per queue strategy.
+ * Run with a heap large enough for the on-heap strategies, e.g. {@code -Djmh.args="QueuedBacklogBenchmark -jvmArgs -Xmx8g -jvmArgs -XX:MaxDirectMemorySize=8g -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class QueuedBacklogBenchmark {
+
+	private static final int BACKLOG = 5_000_000;
+	private static final int TASKS_PER_BATCH = 1000;
+	private static final int DRAIN_BATCH = 100_000;
+
+	@Param({EventQueueUtil.LINKED, EventQueueUtil.OFFHEAP})
+	String queueStrategy;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class BacklogCounters {
+		public long retainedHeapMegabytes;
+		public long gcMillis;
+		public long gcCount;
+	}
+
+	@Benchmark
+	public int fillAndDrain(BacklogCounters counters) {
+		BlockingQueue<Event> eventsQueue = EventQueueUtil.getEventQueue(queueStrategy, BACKLOG);
+		long gcMillisBefore = gcMillis();
+		long gcCountBefore = gcCount();
+		long heapBefore = usedHeapAfterGc();
+		int batch = 0;
+		while (eventsQueue.size() < BACKLOG) {
+			for (Event event : TestEvents.tasks(TASKS_PER_BATCH, "backlog_" + batch++)) {
+				if (!eventsQueue.offer(event)) {
+					break;
+				}
+			}
+		}
+		counters.retainedHeapMegabytes = (usedHeapAfterGc() - heapBefore) / (1024 * 1024);
+
+		List<Event> drained = new ArrayList<>(DRAIN_BATCH);
+		int total = 0;
+		while (eventsQueue.drainTo(drained, DRAIN_BATCH) > 0) {
+			total += drained.size();
+			drained.clear();
+		}
+		counters.gcMillis = gcMillis() - gcMillisBefore;
+		counters.gcCount = gcCount() - gcCountBefore;
+		return total;
+	}
+
+	private static long usedHeapAfterGc() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+}
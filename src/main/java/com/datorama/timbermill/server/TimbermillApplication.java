@@ -1,5 +1,6 @@
 package com.datorama.timbermill.server;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.embedded.tomcat.TomcatConnectorCustomizer;
@@ -13,11 +14,20 @@ import org.springframework.context.annotation.ComponentScan;
 public class TimbermillApplication {
 
     @Bean
-    public ServletWebServerFactory tomcatServletWebServerFactory() {
+    public ServletWebServerFactory tomcatServletWebServerFactory(@Value("${ASYNC_BODY_READ_ENABLED:false}") boolean asyncBodyReadEnabled,
+                                                                @Value("${TOMCAT_MAX_CONNECTIONS:20000}") int maxConnections,
+                                                                @Value("${TOMCAT_ACCEPT_COUNT:}") String acceptCount) {
         TomcatServletWebServerFactory tomcatServletWebServerFactory = new TomcatServletWebServerFactory();
         TomcatConnectorCustomizer customizer = connector -> {
             connector.setProperty("socket.appReadBufSize", "287380");
             connector.setProperty("socket.rxBufSize", "287380");
+            // Uploads read asynchronously don't hold a worker thread, so only then can connections outnumber threads
+            if (asyncBodyReadEnabled) {
+                connector.setProperty("maxConnections", String.valueOf(maxConnections));
+            }
+            if (!acceptCount.isEmpty()) {
+                connector.setProperty("acceptCount", acceptCount);
+            }
         };
         tomcatServletWebServerFactory.addConnectorCustomizers(customizer);
 
@@ -6,18 +6,44 @@ import org.elasticsearch.action.bulk.BulkRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @RestController
 public class AdminController {
 
 	private static final Logger LOG = LoggerFactory.getLogger(AdminController.class);
 
+	private static final String RECEIVING_THREAD = "RECEIVING_THREAD";
+	private static final String MAX_PENDING_EVENTS = "MAX_PENDING_EVENTS";
+	private static final String MAX_QUEUES_FILL_RATIO = "MAX_QUEUES_FILL_RATIO";
+	private static final String QUEUES_MAX_BYTES = "QUEUES_MAX_BYTES";
+	// Held by the Elasticsearch client and the persistence handler of the timbermill-local library, which are built once
+	private static final List<String> RESTART_ONLY = Arrays.asList("INDEX_BULK_SIZE", "INDEXING_THREADS", "EVENT_QUEUE_CAPACITY",
+			"OVERFLOWED_QUEUE_CAPACITY", "MAX_FETCHED_BULKS_IN_ONE_TIME", "MAX_FETCHED_EVENTS_IN_ONE_TIME");
+
 	@Autowired
 	private TimbermillService timbermillService;
 
+	@Autowired
+	private ClusterRouter clusterRouter;
+
+	@Autowired
+	private TimbermillController timbermillController;
+
+	@Autowired
+	private IngestionGate ingestionGate;
 
 	@RequestMapping(method = RequestMethod.POST, value = "/persistence/requests/amount")
 	public long persistenceBulkRequestsAmount() {
@@ -65,4 +91,111 @@ public class AdminController {
 			LOG.info("Test - no persistence");
 		}
 	}
+
+	@RequestMapping(method = RequestMethod.GET, value = "/cluster/nodes")
+	public List<String> clusterNodes() {
+		return clusterRouter.getNodes();
+	}
+
+	/**
+	 * Replaces this node's view of the cluster membership, every node should be given the same list.
+	 * Only allowed with CLUSTER_SECRET, which the request has to carry like a forwarded batch.
+	 */
+	@RequestMapping(method = RequestMethod.PUT, value = "/cluster/nodes")
+	public ResponseEntity<?> setClusterNodes(@RequestBody List<String> nodes, HttpServletRequest request) {
+		if (!clusterRouter.carriesSecret(request)) {
+			LOG.warn("Refused cluster membership change to {} from {}, it did not carry CLUSTER_SECRET", nodes, request.getRemoteAddr());
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Changing the cluster membership requires CLUSTER_SECRET");
+		}
+		LOG.info("Cluster membership changed to {}", nodes);
+		clusterRouter.setNodes(nodes);
+		return ResponseEntity.ok(clusterRouter.getNodes());
+	}
+
+	@RequestMapping(method = RequestMethod.GET, value = "/tuning")
+	public Map<String, Object> tuning() {
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put(RECEIVING_THREAD, timbermillController.getReceivingThreads());
+		values.put(MAX_PENDING_EVENTS, ingestionGate.getMaxPendingEvents());
+		values.put(MAX_QUEUES_FILL_RATIO, ingestionGate.getMaxQueuesFillRatio());
+		EventsByteBudget queuesByteBudget = timbermillService.getQueuesByteBudget();
+		values.put(QUEUES_MAX_BYTES, queuesByteBudget != null ? queuesByteBudget.getMaxBytes() : -1);
+		values.put("indexingPaused", timbermillService.isIndexingPaused());
+		values.put("spillingPaused", timbermillService.isSpillingPaused());
+		return values;
+	}
+
+	/**
+	 * Applies the given values live, all of them or none if one is invalid.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = "/tuning")
+	public ResponseEntity<?> tune(@RequestBody Map<String, String> values) {
+		List<Runnable> changes = new ArrayList<>();
+		try {
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				changes.add(change(entry.getKey(), entry.getValue().trim()));
+			}
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().body(e.getMessage());
+		}
+		LOG.info("Tuning {}", values);
+		changes.forEach(Runnable::run);
+		return ResponseEntity.ok(tuning());
+	}
+
+	private Runnable change(String key, String value) {
+		switch (key) {
+			case RECEIVING_THREAD:
+				int threads = positive(key, Integer.parseInt(value));
+				return () -> timbermillController.setReceivingThreads(threads);
+			case MAX_PENDING_EVENTS:
+				long maxPendingEvents = positive(key, Long.parseLong(value));
+				return () -> ingestionGate.setMaxPendingEvents(maxPendingEvents);
+			case MAX_QUEUES_FILL_RATIO:
+				double ratio = Double.parseDouble(value);
+				if (ratio <= 0 || ratio > 1) {
+					throw new IllegalArgumentException(key + " must be in (0, 1], got " + value);
+				}
+				return () -> ingestionGate.setMaxQueuesFillRatio(ratio);
+			case QUEUES_MAX_BYTES:
+				EventsByteBudget queuesByteBudget = timbermillService.getQueuesByteBudget();
+				if (queuesByteBudget == null) {
+					throw new IllegalArgumentException(key + " can't be tuned, the queues are bounded by counts only (QUEUES_MAX_HEAP_RATIO is 0)");
+				}
+				long maxBytes = positive(key, Long.parseLong(value));
+				return () -> queuesByteBudget.setMaxBytes(maxBytes);
+			default:
+				if (RESTART_ONLY.contains(key)) {
+					throw new IllegalArgumentException(key + " can only be changed with a restart");
+				}
+				throw new IllegalArgumentException("Unknown tunable " + key);
+		}
+	}
+
+	private static <T extends Number> T positive(String key, T value) {
+		if (value.doubleValue() <= 0) {
+			throw new IllegalArgumentException(key + " must be positive, got " + value);
+		}
+		return value;
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/indexing/pause")
+	public void pauseIndexing() {
+		timbermillService.setIndexingPaused(true);
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/indexing/resume")
+	public void resumeIndexing() {
+		timbermillService.setIndexingPaused(false);
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/spilling/pause")
+	public void pauseSpilling() {
+		timbermillService.setSpillingPaused(true);
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/spilling/resume")
+	public void resumeSpilling() {
+		timbermillService.setSpillingPaused(false);
+	}
 }
@@ -0,0 +1,183 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Reads a request body with servlet 3.1 non-blocking I/O, so no container thread is held while a slow client uploads.
+ * Bytes are collected as the container reports them available (still gzipped if the request is gzipped),
+ * and once the whole body arrived the request is dispatched again to the controller with the body served from memory.
+ * The buffers of all bodies being read are bounded by a shared byte budget, taken as the bytes actually arrive rather
+ * than as the client declares them, and a body is handed to the dispatch without being copied.
+ * The buffer's bytes are released back to the budget when the request completes.
+ */
+final class AsyncBodyReader implements ReadListener, AsyncListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncBodyReader.class);
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_INITIAL_BUFFER_SIZE = 1024 * 1024;
+	// Arrays can't be quite as long as Integer.MAX_VALUE on every JVM
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private final HttpServletRequest request;
+	private final HttpServletRequestWrapper dispatchedRequest;
+	private final AsyncContext asyncContext;
+	private final ServletInputStream inputStream;
+	private final EventsByteBudget bodiesBudget;
+	private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+	private final boolean gzipped;
+	private final int maxBodyBytes;
+	private final AtomicBoolean done = new AtomicBoolean();
+	private byte[] body = new byte[0];
+	private int bodyLength;
+	private long contentLength;
+	// Bytes acquired from the budget, only changed by the thread reading the body, released once the request completes
+	private volatile long acquiredBytes;
+
+	private AsyncBodyReader(HttpServletRequest request, HttpServletResponse response, boolean gzipped, long timeoutMillis, long maxBodyBytes,
+							EventsByteBudget bodiesBudget) throws IOException {
+		this.request = request;
+		this.gzipped = gzipped;
+		this.maxBodyBytes = (int) Math.min(maxBodyBytes, MAX_ARRAY_SIZE);
+		this.bodiesBudget = bodiesBudget;
+		// The wrapper is handed to the async dispatch now and pointed at the buffered body once it is complete
+		this.dispatchedRequest = new HttpServletRequestWrapper(request);
+		this.asyncContext = request.startAsync(dispatchedRequest, response);
+		this.asyncContext.setTimeout(timeoutMillis);
+		this.asyncContext.addListener(this);
+		this.inputStream = request.getInputStream();
+	}
+
+	/**
+	 * Starts reading the body asynchronously, the calling container thread returns right away.
+	 *
+	 * @param bodiesBudget shared by all the bodies being read, a body that does not fit in it is refused.
+	 */
+	static void start(HttpServletRequest request, HttpServletResponse response, boolean gzipped, long timeoutMillis, long maxBodyBytes,
+					  EventsByteBudget bodiesBudget) throws IOException {
+		AsyncBodyReader reader = new AsyncBodyReader(request, response, gzipped, timeoutMillis, maxBodyBytes, bodiesBudget);
+		long contentLength = request.getContentLengthLong();
+		if (contentLength > reader.maxBodyBytes) {
+			reader.fail(HttpStatus.PAYLOAD_TOO_LARGE, "Request body is larger than " + reader.maxBodyBytes + " bytes");
+			return;
+		}
+		reader.contentLength = contentLength;
+		// A declared length is only a claim, the budget is taken as the body actually arrives
+		if (!reader.grow(contentLength > 0 ? (int) Math.min(contentLength, MAX_INITIAL_BUFFER_SIZE) : READ_BUFFER_SIZE)) {
+			return;
+		}
+		reader.inputStream.setReadListener(reader);
+	}
+
+	@Override
+	public void onDataAvailable() throws IOException {
+		while (!done.get() && inputStream.isReady() && !inputStream.isFinished()) {
+			int n = inputStream.read(readBuffer);
+			if (n == -1) {
+				break;
+			}
+			if ((long) bodyLength + n > maxBodyBytes) {
+				fail(HttpStatus.PAYLOAD_TOO_LARGE, "Request body is larger than " + maxBodyBytes + " bytes");
+				return;
+			}
+			if (bodyLength + n > body.length && !grow(nextCapacity(bodyLength + n))) {
+				return;
+			}
+			System.arraycopy(readBuffer, 0, body, bodyLength, n);
+			bodyLength += n;
+		}
+	}
+
+	/**
+	 * Doubles the buffer, but not past the declared length when the body still fits in it, so a body of a known length
+	 * ends up in a buffer of exactly its size.
+	 */
+	private int nextCapacity(int needed) {
+		long capacity = Math.max(2L * body.length, needed);
+		if (contentLength >= needed) {
+			capacity = Math.min(capacity, contentLength);
+		}
+		return (int) Math.min(maxBodyBytes, capacity);
+	}
+
+	/**
+	 * @return false if the budget had no room for the larger buffer, the request was then refused.
+	 */
+	private boolean grow(int capacity) {
+		long extraBytes = capacity - body.length;
+		if (!bodiesBudget.tryAcquire(extraBytes)) {
+			fail(HttpStatus.TOO_MANY_REQUESTS, "Too many request bodies are being read, retry later");
+			return false;
+		}
+		acquiredBytes += extraBytes;
+		body = Arrays.copyOf(body, capacity);
+		return true;
+	}
+
+	@Override
+	public void onAllDataRead() throws IOException {
+		if (!done.compareAndSet(false, true)) {
+			return;
+		}
+		HttpServletRequest bufferedRequest = new BufferedBodyRequestWrapper(request, body, bodyLength);
+		dispatchedRequest.setRequest(gzipped ? new GzippedInputStreamWrapper(bufferedRequest) : bufferedRequest);
+		asyncContext.dispatch();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		LOG.warn("Failed reading request body asynchronously after {} bytes", bodyLength, t);
+		fail(HttpStatus.BAD_REQUEST, "Failed reading request body");
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		// Once dispatched the request is handled on a container thread, which completes it
+		if (!done.get()) {
+			LOG.warn("Timed out reading request body asynchronously after {} bytes", bodyLength);
+			fail(HttpStatus.REQUEST_TIMEOUT, "Timed out reading request body");
+		}
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		fail(HttpStatus.INTERNAL_SERVER_ERROR, "Failed handling request");
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+		bodiesBudget.release(acquiredBytes);
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+
+	private void fail(HttpStatus status, String message) {
+		if (!done.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+			response.sendError(status.value(), message);
+		} catch (IOException | IllegalStateException e) {
+			LOG.debug("Could not send error response", e);
+		} finally {
+			asyncContext.complete();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keeps a bounded part of a request body while it is streamed into the parser, so a parse error can still show where
+ * it happened: the first {@link #PREFIX_BYTES} bytes, and a ring of the last {@link #WINDOW_BYTES} bytes read, which
+ * covers the parse location since parsers only read a few kilobytes ahead of it.
+ * Whatever the body size, at most {@code PREFIX_BYTES + WINDOW_BYTES} are held, and the ring is only allocated once
+ * the body outgrows the prefix.
+ */
+final class BodyCapture {
+
+	static final int PREFIX_BYTES = 4 * 1024;
+	static final int WINDOW_BYTES = 16 * 1024;
+	/**
+	 * Size of the excerpt around a parse location returned by {@link #excerpt(long)}.
+	 */
+	static final int EXCERPT_BYTES = 4 * 1024;
+
+	private final byte[] prefix = new byte[PREFIX_BYTES];
+	private byte[] window;
+	private long total;
+
+	void write(int b) {
+		if (total < PREFIX_BYTES) {
+			prefix[(int) total] = (byte) b;
+		} else {
+			window()[(int) (total % WINDOW_BYTES)] = (byte) b;
+		}
+		total++;
+	}
+
+	void write(byte[] b, int off, int len) {
+		if (len <= 0) {
+			return;
+		}
+		if (total < PREFIX_BYTES) {
+			System.arraycopy(b, off, prefix, (int) total, (int) Math.min(len, PREFIX_BYTES - total));
+		}
+		if (total + len > PREFIX_BYTES) {
+			byte[] ring = window();
+			// Only the chunk's last WINDOW_BYTES can still be in the ring once it is written
+			int skipped = Math.max(0, len - WINDOW_BYTES);
+			long position = total + skipped;
+			int from = off + skipped;
+			int remaining = len - skipped;
+			while (remaining > 0) {
+				int at = (int) (position % WINDOW_BYTES);
+				int copied = Math.min(remaining, WINDOW_BYTES - at);
+				System.arraycopy(b, from, ring, at, copied);
+				position += copied;
+				from += copied;
+				remaining -= copied;
+			}
+		}
+		total += len;
+	}
+
+	private byte[] window() {
+		if (window == null) {
+			window = new byte[WINDOW_BYTES];
+			// The prefix is all that was read so far, seeding the ring with it keeps the ring's content contiguous
+			System.arraycopy(prefix, 0, window, 0, (int) Math.min(total, PREFIX_BYTES));
+		}
+		return window;
+	}
+
+	long getTotalBytes() {
+		return total;
+	}
+
+	/**
+	 * @param errorOffset byte offset of the parse error in the body, or a negative value when it is unknown.
+	 * @return up to {@link #EXCERPT_BYTES} around the error offset when they were kept, otherwise the body's beginning
+	 * followed by the last bytes read.
+	 */
+	byte[] excerpt(long errorOffset) {
+		long windowStart = windowStart();
+		long prefixEnd = Math.min(total, PREFIX_BYTES);
+		boolean inWindow = window != null && errorOffset >= windowStart && errorOffset <= total;
+		if (errorOffset >= 0 && (inWindow || errorOffset <= prefixEnd)) {
+			long keptStart = inWindow ? windowStart : 0;
+			long keptEnd = inWindow ? total : prefixEnd;
+			return copy(Math.max(keptStart, errorOffset - EXCERPT_BYTES / 2), Math.min(keptEnd, errorOffset + EXCERPT_BYTES / 2));
+		}
+		byte[] head = copy(0, Math.min(prefixEnd, EXCERPT_BYTES / 2));
+		long tailStart = Math.max(Math.max(windowStart, head.length), total - EXCERPT_BYTES / 2);
+		return headAndTail(head, tailStart - head.length, copy(tailStart, total));
+	}
+
+	/**
+	 * Same as {@link #excerpt(long)} for a body that is fully in memory, in the first {@code length} bytes of the array.
+	 */
+	static byte[] excerpt(byte[] body, int length, long errorOffset) {
+		if (errorOffset >= 0 && errorOffset <= length) {
+			return Arrays.copyOfRange(body, (int) Math.max(0, errorOffset - EXCERPT_BYTES / 2), (int) Math.min(length, errorOffset + EXCERPT_BYTES / 2));
+		}
+		int headLength = Math.min(length, EXCERPT_BYTES / 2);
+		int tailStart = Math.max(headLength, length - EXCERPT_BYTES / 2);
+		return headAndTail(Arrays.copyOf(body, headLength), tailStart - headLength, Arrays.copyOfRange(body, tailStart, length));
+	}
+
+	private static byte[] headAndTail(byte[] head, long skippedBytes, byte[] tail) {
+		ByteArrayOutputStream excerpt = new ByteArrayOutputStream(head.length + tail.length + 32);
+		excerpt.write(head, 0, head.length);
+		if (skippedBytes > 0) {
+			byte[] gap = ("\n... " + skippedBytes + " bytes ...\n").getBytes(StandardCharsets.US_ASCII);
+			excerpt.write(gap, 0, gap.length);
+		}
+		excerpt.write(tail, 0, tail.length);
+		return excerpt.toByteArray();
+	}
+
+	private long windowStart() {
+		return window != null ? Math.max(0, total - WINDOW_BYTES) : 0;
+	}
+
+	/**
+	 * Copies kept bytes, from the prefix when the ring no longer holds them.
+	 */
+	private byte[] copy(long from, long to) {
+		byte[] bytes = new byte[(int) Math.max(0, to - from)];
+		if (window == null || from < windowStart()) {
+			System.arraycopy(prefix, (int) from, bytes, 0, bytes.length);
+			return bytes;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = window[(int) ((from + i) % WINDOW_BYTES)];
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,50 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Request whose body was already read into memory by {@link AsyncBodyReader}. The body can be re-read.
+ * The body is the reader's own buffer, only its first {@code length} bytes belong to the body.
+ */
+final class BufferedBodyRequestWrapper extends HttpServletRequestWrapper {
+
+	private final byte[] body;
+	private final int length;
+
+	BufferedBodyRequestWrapper(HttpServletRequest request, byte[] body, int length) {
+		super(request);
+		this.body = body;
+		this.length = length;
+	}
+
+	@Override public ServletInputStream getInputStream() {
+		return new ByteArrayServletInputStream(body, 0, length);
+	}
+
+	@Override public BufferedReader getReader() throws IOException {
+		String encoding = getCharacterEncoding();
+		return new BufferedReader(new InputStreamReader(getInputStream(), encoding != null ? encoding : GzippedInputStreamWrapper.DEFAULT_ENCODING));
+	}
+
+	@Override public int getContentLength() {
+		return length;
+	}
+
+	@Override public long getContentLengthLong() {
+		return length;
+	}
+
+	byte[] getBody() {
+		return body;
+	}
+
+	int getBodyLength() {
+		return length;
+	}
+}
@@ -0,0 +1,55 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * {@link ServletInputStream} over a body that is already in memory.
+ * It is always ready, so a registered {@link ReadListener} is notified right away.
+ */
+final class ByteArrayServletInputStream extends ServletInputStream {
+
+	private final ByteArrayInputStream sourceStream;
+
+	ByteArrayServletInputStream(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	ByteArrayServletInputStream(byte[] bytes, int offset, int length) {
+		sourceStream = new ByteArrayInputStream(bytes, offset, length);
+	}
+
+	@Override public boolean isFinished() {
+		return sourceStream.available() <= 0;
+	}
+
+	@Override public boolean isReady() {
+		return true;
+	}
+
+	@Override public void setReadListener(ReadListener readListener) {
+		try {
+			readListener.onDataAvailable();
+			if (isFinished()) {
+				readListener.onAllDataRead();
+			}
+		} catch (IOException e) {
+			readListener.onError(e);
+		}
+	}
+
+	@Override public int read() {
+		return sourceStream.read();
+	}
+
+	@Override public int read(byte[] b, int off, int len) {
+		return sourceStream.read(b, off, len);
+	}
+
+	@Override public int available() {
+		return sourceStream.available();
+	}
+}
@@ -0,0 +1,193 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.google.common.util.concurrent.ForwardingBlockingQueue;
+
+/**
+ * Event queue bounded by estimated bytes on top of its delegate's count capacity.
+ * An offer fails once the queue holds its {@code budgetShare} of the shared {@link EventsByteBudget} or the budget is spent, so
+ * {@code LocalOutputPipe.pushEventToQueues} overflows and spills on bytes instead of on event counts.
+ * {@link #remainingCapacity()} is scaled by the bytes left, so fill ratios reflect memory rather than counts.
+ */
+final class ByteWeightedQueue extends ForwardingBlockingQueue<Event> {
+
+	private static final long PUT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final BlockingQueue<Event> delegate;
+	private final EventsByteBudget budget;
+	private final double budgetShare;
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	ByteWeightedQueue(BlockingQueue<Event> delegate, EventsByteBudget budget, double budgetShare) {
+		this.delegate = delegate;
+		this.budget = budget;
+		this.budgetShare = budgetShare;
+	}
+
+	@Override
+	protected BlockingQueue<Event> delegate() {
+		return delegate;
+	}
+
+	@Override
+	public boolean offer(Event event) {
+		long bytes = EventsByteBudget.estimate(event);
+		if (!acquire(bytes)) {
+			return false;
+		}
+		if (!delegate.offer(event)) {
+			release(bytes);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean offer(Event event, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(event)) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			park();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean add(Event event) {
+		if (!offer(event)) {
+			throw new IllegalStateException("Queue full");
+		}
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Event> events) {
+		return standardAddAll(events);
+	}
+
+	@Override
+	public void put(Event event) throws InterruptedException {
+		while (!offer(event)) {
+			park();
+		}
+	}
+
+	@Override
+	public Event poll() {
+		return released(delegate.poll());
+	}
+
+	@Override
+	public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return released(delegate.poll(timeout, unit));
+	}
+
+	@Override
+	public Event take() throws InterruptedException {
+		return released(delegate.take());
+	}
+
+	@Override
+	public Event remove() {
+		return released(delegate.remove());
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		if (!delegate.remove(object)) {
+			return false;
+		}
+		released((Event) object);
+		return true;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c, int maxElements) {
+		List<Event> drained = new ArrayList<>(Math.min(maxElements, Math.max(1, delegate.size())));
+		int amount = delegate.drainTo(drained, maxElements);
+		long bytes = 0;
+		for (Event event : drained) {
+			bytes += EventsByteBudget.estimate(event);
+		}
+		release(bytes);
+		c.addAll(drained);
+		return amount;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void clear() {
+		drainTo(new ArrayList<>());
+	}
+
+	@Override
+	public int remainingCapacity() {
+		int size = delegate.size();
+		long used = usedBytes.get();
+		long remainingBytes = Math.max(0, Math.min(maxBytes() - used, budget.getMaxBytes() - budget.getUsedBytes()));
+		if (used <= 0 || size == 0) {
+			return remainingBytes > 0 ? delegate.remainingCapacity() : 0;
+		}
+		long remainingByBytes = remainingBytes * size / used;
+		return (int) Math.min(delegate.remainingCapacity(), remainingByBytes);
+	}
+
+	// Follows the budget when it is tuned at runtime
+	private long maxBytes() {
+		return (long) (budget.getMaxBytes() * budgetShare);
+	}
+
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	private boolean acquire(long bytes) {
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + bytes > maxBytes() && used > 0) {
+				return false;
+			}
+		} while (!usedBytes.compareAndSet(used, used + bytes));
+		if (!budget.tryAcquire(bytes)) {
+			usedBytes.addAndGet(-bytes);
+			return false;
+		}
+		return true;
+	}
+
+	private void release(long bytes) {
+		if (bytes > 0) {
+			usedBytes.addAndGet(-bytes);
+			budget.release(bytes);
+		}
+	}
+
+	private Event released(Event event) {
+		if (event != null) {
+			release(EventsByteBudget.estimate(event));
+		}
+		return event;
+	}
+
+	private static void park() throws InterruptedException {
+		LockSupport.parkNanos(PUT_PARK_NANOS);
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Request whose body is read straight from the container stream, keeping only a {@link BodyCapture} of it for
+ * error reporting instead of a second copy of the whole body.
+ */
+final class CapturingRequestWrapper extends HttpServletRequestWrapper {
+
+	private final BodyCapture bodyCapture = new BodyCapture();
+	private ServletInputStream servletInputStream;
+	private BufferedReader reader;
+
+	CapturingRequestWrapper(HttpServletRequest request) {
+		super(request);
+	}
+
+	@Override public ServletInputStream getInputStream() throws IOException {
+		if (servletInputStream == null) {
+			servletInputStream = new CapturingServletInputStream(super.getInputStream());
+		}
+		return servletInputStream;
+	}
+
+	@Override public BufferedReader getReader() throws IOException {
+		if (reader == null) {
+			String encoding = getCharacterEncoding();
+			reader = new BufferedReader(new InputStreamReader(getInputStream(), encoding != null ? encoding : GzippedInputStreamWrapper.DEFAULT_ENCODING));
+		}
+		return reader;
+	}
+
+	BodyCapture getBodyCapture() {
+		return bodyCapture;
+	}
+
+	private class CapturingServletInputStream extends ServletInputStream {
+		private final ServletInputStream delegate;
+
+		CapturingServletInputStream(ServletInputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override public boolean isFinished() {
+			return delegate.isFinished();
+		}
+
+		@Override public boolean isReady() {
+			return delegate.isReady();
+		}
+
+		@Override public void setReadListener(ReadListener readListener) {
+			delegate.setReadListener(readListener);
+		}
+
+		@Override public int read() throws IOException {
+			int b = delegate.read();
+			if (b != -1) {
+				bodyCapture.write(b);
+			}
+			return b;
+		}
+
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			int n = delegate.read(b, off, len);
+			bodyCapture.write(b, off, n);
+			return n;
+		}
+
+		@Override public int available() throws IOException {
+			return delegate.available();
+		}
+
+		@Override public void close() throws IOException {
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
+/**
+ * Per client events rate limit of LIMIT_FOR_PERIOD events every LIMIT_REFRESH_PERIOD_MINUTES, with bursts up to the full limit.
+ * Uses the generic cell rate algorithm: each client has a single theoretical arrival time that a batch pushes forward
+ * by its events' emission interval, and the batch conforms if that time stays within the burst allowance of now.
+ * Clients live in an open-addressing table of RATE_LIMITER_CAPACITY primitive slots updated with CAS,
+ * so a decision takes no lock and allocates nothing. A slot whose client was idle for a whole period is reclaimed,
+ * and a client that finds no free slot takes over the least recently active probed one, whose client starts over with a
+ * full allowance if it comes back, rather than clients sharing a slot and each other's limit.
+ * Clients are identified by the CLIENT_ID_HEADER header, the events' env or the remote address, according to RATE_LIMIT_KEY.
+ * Behind a load balancer or proxy every request comes from the balancer's address, so there the clients must send
+ * CLIENT_ID_HEADER: the host strategy, and the header strategy for requests without the header, would limit them all as one.
+ */
+@Component
+public class ClientRateLimiter {
+
+	static final String HEADER_KEY = "header";
+	static final String ENV_KEY = "env";
+	static final String HOST_KEY = "host";
+
+	private static final Logger LOG = LoggerFactory.getLogger(ClientRateLimiter.class);
+	private static final int MAX_PROBES = 16;
+	private static final int MAX_CAPACITY = 1 << 26;
+
+	private final boolean enabled;
+	private final String keyStrategy;
+	private final String clientIdHeader;
+	private final long emissionIntervalNanos;
+	private final long burstNanos;
+	private final int mask;
+	private final AtomicLongArray clients;
+	private final AtomicLongArray arrivalTimes;
+
+	public ClientRateLimiter(@Value("${CLIENT_RATE_LIMIT_ENABLED:false}") boolean enabled,
+							 @Value("${RATE_LIMIT_KEY:header}") String keyStrategy,
+							 @Value("${CLIENT_ID_HEADER:X-Timbermill-Client}") String clientIdHeader,
+							 @Value("${LIMIT_FOR_PERIOD:30000}") int limitForPeriod,
+							 @Value("${LIMIT_REFRESH_PERIOD_MINUTES:1}") int limitRefreshPeriod,
+							 @Value("${RATE_LIMITER_CAPACITY:1000000}") int rateLimiterCapacity) {
+		this.enabled = enabled;
+		this.keyStrategy = keyStrategy.toLowerCase();
+		this.clientIdHeader = clientIdHeader;
+		long periodNanos = TimeUnit.MINUTES.toNanos(limitRefreshPeriod);
+		this.emissionIntervalNanos = Math.max(1, periodNanos / Math.max(1, limitForPeriod));
+		this.burstNanos = periodNanos;
+		int capacity = Math.min(MAX_CAPACITY, Math.max(MAX_PROBES, rateLimiterCapacity));
+		capacity = Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = capacity - 1;
+		this.clients = new AtomicLongArray(enabled ? capacity : 1);
+		this.arrivalTimes = new AtomicLongArray(enabled ? capacity : 1);
+		if (enabled) {
+			LOG.info("Limiting every client to {} events per {} minutes, identified by {}, tracking up to {} clients", limitForPeriod, limitRefreshPeriod, keyStrategy, capacity);
+			if (HOST_KEY.equals(this.keyStrategy)) {
+				LOG.warn("Clients are rate limited by remote address, behind a load balancer they would all share one limit, "
+						+ "set RATE_LIMIT_KEY={} and have the clients send {}", HEADER_KEY, clientIdHeader);
+			}
+		}
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the key identifying the client that sent the batch.
+	 */
+	String clientKey(HttpServletRequest request, Collection<Event> events) {
+		if (HEADER_KEY.equals(keyStrategy)) {
+			String client = request.getHeader(clientIdHeader);
+			if (client != null && !client.isEmpty()) {
+				return client;
+			}
+		} else if (ENV_KEY.equals(keyStrategy) && !events.isEmpty()) {
+			String env = events.iterator().next().getEnv();
+			if (env != null) {
+				return env;
+			}
+		}
+		return request.getRemoteAddr();
+	}
+
+	/**
+	 * @return whether the client may send {@code eventsAmount} more events now, consuming them from its allowance if so.
+	 */
+	boolean tryAcquire(String client, int eventsAmount) {
+		if (!enabled) {
+			return true;
+		}
+		long now = System.nanoTime();
+		int slot = slotOf(client, now);
+		long increment = emissionIntervalNanos * eventsAmount;
+		while (true) {
+			long arrivalTime = arrivalTimes.get(slot);
+			long newArrivalTime = Math.max(arrivalTime, now) + increment;
+			// A single batch larger than the whole burst still conforms once the client is idle
+			if (newArrivalTime - now > burstNanos && arrivalTime > now) {
+				CLIENT_RATE_LIMITED_EVENTS_COUNTER.withoutTags().increment(eventsAmount);
+				return false;
+			}
+			if (arrivalTimes.compareAndSet(slot, arrivalTime, newArrivalTime)) {
+				return true;
+			}
+		}
+	}
+
+	private int slotOf(String client, long now) {
+		long fingerprint = EventsDeduplicator.fingerprint(client);
+		if (fingerprint == 0) {
+			fingerprint = 1;
+		}
+		int index = (int) fingerprint & mask;
+		int leastRecentSlot = index;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int slot = (index + probe) & mask;
+			long owner = clients.get(slot);
+			if (owner == fingerprint) {
+				return slot;
+			}
+			if (owner == 0 && clients.compareAndSet(slot, 0, fingerprint)) {
+				return slot;
+			}
+			// Idle for a whole period, its allowance is full anyway
+			long arrivalTime = arrivalTimes.get(slot);
+			if (owner != 0 && now - arrivalTime > burstNanos && clients.compareAndSet(slot, owner, fingerprint)) {
+				return slot;
+			}
+			if (arrivalTime - arrivalTimes.get(leastRecentSlot) < 0) {
+				leastRecentSlot = slot;
+			}
+		}
+		return evict(leastRecentSlot, fingerprint, now);
+	}
+
+	/**
+	 * Takes over a slot for a client, the slot's earliest theoretical arrival time marks its least recently active client.
+	 */
+	private int evict(int slot, long fingerprint, long now) {
+		while (true) {
+			long owner = clients.get(slot);
+			if (owner == fingerprint || clients.compareAndSet(slot, owner, fingerprint)) {
+				break;
+			}
+		}
+		long arrivalTime = arrivalTimes.get(slot);
+		// Clears what the evicted client consumed, unless someone updated the slot meanwhile
+		if (arrivalTime - now > 0) {
+			arrivalTimes.compareAndSet(slot, arrivalTime, now);
+		}
+		EVICTED_RATE_LIMITED_CLIENTS_COUNTER.withoutTags().increment();
+		return slot;
+	}
+}
@@ -0,0 +1,462 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
+/**
+ * Cluster mode: every event is indexed by the node owning its primary task id on a {@link ConsistentHashRing} of
+ * CLUSTER_NODES, so a whole task tree goes through one node's task and orphan caches.
+ * Only start events carry the primary id (or a parent id leading to it), so every node keeps a {@link TaskOwnerDirectory}
+ * of the primary ids of the tasks it saw start. An event of a task whose start this node did not see is forwarded to
+ * the task's home, the node owning its own task id, which forwards it once more to the primary id's owner. The home
+ * learns that owner from an ownership hint sent to /internal/owners by whichever node routed the task's start.
+ * A forwarded batch is forwarded again at most once, so the owner is always at most two hops away.
+ * Events owned by other nodes are buffered per node and forwarded by a thread per node to its /internal/events endpoint,
+ * in Smile batches of up to CLUSTER_FORWARD_BATCH_EVENTS events, sent once full or CLUSTER_FORWARD_LINGER_MILLIS after
+ * the first buffered event. A batch a node did not accept after CLUSTER_FORWARD_TRIES tries, or events over
+ * CLUSTER_FORWARD_MAX_PENDING_EVENTS, are indexed locally instead, trading cache locality for never losing them.
+ * Batches are routed once they were admitted, and in durable mode written to the write-ahead log, so a forwarded event
+ * keeps its write-ahead log batch from being released until the owner acknowledged it.
+ * Membership comes from config and can be replaced at runtime, which moves only the keys of the arcs that changed hands.
+ * Forwarded batches skip the client rate limiter, so /internal/events only accepts cluster members: requests carrying
+ * CLUSTER_SECRET when it is set, otherwise requests coming from the address of one of the CLUSTER_NODES.
+ * Addresses are only trusted when they come from config, and membership can only be replaced at runtime with
+ * CLUSTER_SECRET, otherwise any client could make itself a member.
+ */
+@Component
+public class ClusterRouter {
+
+	static final String INTERNAL_EVENTS_PATH = "/internal/events";
+	static final String INTERNAL_OWNERS_PATH = "/internal/owners";
+	static final String CLUSTER_SECRET_HEADER = "X-Timbermill-Cluster-Secret";
+	static final String FORWARD_HOPS_HEADER = "X-Timbermill-Forward-Hops";
+	static final int MAX_FORWARD_HOPS = 2;
+	static final String HINTS_CONTENT_TYPE = "application/octet-stream";
+
+	private static final Logger LOG = LoggerFactory.getLogger(ClusterRouter.class);
+	private static final long RETRY_BACKOFF_MILLIS = 200;
+
+	private final String selfNode;
+	private final int virtualNodes;
+	private final int batchEvents;
+	private final long lingerNanos;
+	private final int timeoutMillis;
+	private final int tries;
+	private final int maxPendingEvents;
+	private final byte[] secret;
+	private final TaskOwnerDirectory ownerDirectory;
+	private final Map<String, Forwarder> forwarders = new ConcurrentHashMap<>();
+	private volatile ConsistentHashRing ring;
+	// Resolved from CLUSTER_NODES only, never from a membership given at runtime
+	private final Set<InetAddress> memberAddresses;
+	private volatile boolean running = true;
+
+	@Autowired
+	private TimbermillService timbermillService;
+
+	public ClusterRouter(@Value("${CLUSTER_NODES:}") String clusterNodes,
+						 @Value("${CLUSTER_SELF_NODE:}") String selfNode,
+						 @Value("${CLUSTER_VIRTUAL_NODES:160}") int virtualNodes,
+						 @Value("${CLUSTER_FORWARD_BATCH_EVENTS:5000}") int batchEvents,
+						 @Value("${CLUSTER_FORWARD_LINGER_MILLIS:20}") long lingerMillis,
+						 @Value("${CLUSTER_FORWARD_TIMEOUT_MILLIS:10000}") int timeoutMillis,
+						 @Value("${CLUSTER_FORWARD_TRIES:3}") int tries,
+						 @Value("${CLUSTER_FORWARD_MAX_PENDING_EVENTS:1000000}") int maxPendingEvents,
+						 @Value("${CLUSTER_SECRET:}") String secret,
+						 @Value("${CLUSTER_OWNER_DIRECTORY_CAPACITY:1048576}") int ownerDirectoryCapacity) {
+		this.selfNode = normalize(selfNode);
+		this.virtualNodes = virtualNodes;
+		this.batchEvents = batchEvents;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.timeoutMillis = timeoutMillis;
+		this.tries = Math.max(1, tries);
+		this.maxPendingEvents = maxPendingEvents;
+		this.secret = secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+		this.ownerDirectory = new TaskOwnerDirectory(ownerDirectoryCapacity);
+		setNodes(parseNodes(clusterNodes));
+		this.memberAddresses = this.secret == null && isEnabled() ? resolveAddresses(getNodes()) : Collections.emptySet();
+	}
+
+	boolean isEnabled() {
+		return ring != null;
+	}
+
+	List<String> getNodes() {
+		ConsistentHashRing currentRing = ring;
+		return currentRing != null ? currentRing.getNodes() : Collections.emptyList();
+	}
+
+	/**
+	 * Replaces the cluster membership, cluster mode is off unless there are several nodes and this node is one of them.
+	 * Events already buffered for a node are still sent to it.
+	 */
+	synchronized void setNodes(List<String> nodes) {
+		List<String> normalized = nodes.stream().map(ClusterRouter::normalize).filter(node -> !node.isEmpty()).distinct().collect(Collectors.toList());
+		if (normalized.size() > 1 && normalized.contains(selfNode)) {
+			ring = new ConsistentHashRing(normalized, virtualNodes);
+			LOG.info("Cluster mode with nodes {}, this node is {}", normalized, selfNode);
+		} else {
+			if (!normalized.isEmpty() && !normalized.contains(selfNode)) {
+				LOG.warn("CLUSTER_SELF_NODE {} is not one of the nodes {}, cluster mode is off", selfNode, normalized);
+			}
+			ring = null;
+		}
+	}
+
+	/**
+	 * @return whether the request comes from a member of the cluster, only those may post forwarded batches.
+	 */
+	boolean isClusterMember(HttpServletRequest request) {
+		if (!isEnabled()) {
+			return false;
+		}
+		if (secret != null) {
+			return carriesSecret(request);
+		}
+		try {
+			return memberAddresses.contains(InetAddress.getByName(request.getRemoteAddr()));
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return whether CLUSTER_SECRET is set and the request carries it, required to change the membership at runtime.
+	 */
+	boolean carriesSecret(HttpServletRequest request) {
+		if (secret == null) {
+			return false;
+		}
+		String header = request.getHeader(CLUSTER_SECRET_HEADER);
+		return header != null && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Set<InetAddress> resolveAddresses(List<String> nodes) {
+		Set<InetAddress> addresses = new HashSet<>();
+		for (String node : nodes) {
+			try {
+				addresses.addAll(Arrays.asList(InetAddress.getAllByName(new URL(node).getHost())));
+			} catch (IOException e) {
+				LOG.warn("Could not resolve the address of cluster node {}, its forwarded batches will be refused unless CLUSTER_SECRET is set", node, e);
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Same as {@link #route(Collection, long, int)} for a client batch that was not written to the write-ahead log.
+	 */
+	Collection<Event> route(Collection<Event> events) {
+		return route(events, -1, 0);
+	}
+
+	/**
+	 * Same as {@link #route(Collection, long, int)} for a client batch.
+	 */
+	Collection<Event> route(Collection<Event> events, long walPosition) {
+		return route(events, walPosition, 0);
+	}
+
+	/**
+	 * Hands the events owned by other nodes over to their forwarders.
+	 *
+	 * @param walPosition the write-ahead log position of the batch, retained for every part of it that is forwarded, or -1.
+	 * @param hops how many times the batch was already forwarded, a batch forwarded {@link #MAX_FORWARD_HOPS} times stays here.
+	 * @return the events this node owns.
+	 */
+	Collection<Event> route(Collection<Event> events, long walPosition, int hops) {
+		ConsistentHashRing currentRing = ring;
+		if (currentRing == null || hops >= MAX_FORWARD_HOPS) {
+			return events;
+		}
+		List<Event> local = new ArrayList<>(events.size());
+		Map<String, List<Event>> remote = new HashMap<>();
+		for (Event event : events) {
+			String owner = currentRing.ownerOf(routingKey(event, currentRing));
+			if (owner.equals(selfNode)) {
+				local.add(event);
+			} else {
+				remote.computeIfAbsent(owner, node -> new ArrayList<>()).add(event);
+			}
+		}
+		for (Map.Entry<String, List<Event>> entry : remote.entrySet()) {
+			if (!forwarder(entry.getKey(), hops + 1).add(entry.getValue(), walPosition)) {
+				local.addAll(entry.getValue());
+			}
+		}
+		return local;
+	}
+
+	/**
+	 * @return the fingerprint of the primary id of the event's task tree when it is known, otherwise of its own task id.
+	 */
+	private long routingKey(Event event, ConsistentHashRing currentRing) {
+		long taskKey = EventsDeduplicator.fingerprint(event.getTaskId());
+		long primaryKey;
+		if (event.getPrimaryId() != null) {
+			primaryKey = EventsDeduplicator.fingerprint(event.getPrimaryId());
+		} else if (event.getParentId() != null) {
+			// A start event without a primary id belongs to its parent's tree, the parent is the root when it is unknown here
+			long parentKey = EventsDeduplicator.fingerprint(event.getParentId());
+			long parentPrimaryKey = ownerDirectory.get(parentKey);
+			primaryKey = parentPrimaryKey != 0 ? parentPrimaryKey : parentKey;
+		} else {
+			long knownPrimaryKey = ownerDirectory.get(taskKey);
+			return knownPrimaryKey != 0 ? knownPrimaryKey : taskKey;
+		}
+		ownerDirectory.put(taskKey, primaryKey);
+		String home = currentRing.ownerOf(taskKey);
+		if (!home.equals(selfNode) && !home.equals(currentRing.ownerOf(primaryKey))) {
+			// The task's later events may reach nodes that did not see it start, those forward them to its home
+			forwarder(home, 1).hint(taskKey, primaryKey);
+		}
+		return primaryKey;
+	}
+
+	/**
+	 * Learns the owners of tasks that started on other nodes, from the body of an ownership hints request.
+	 */
+	void learnOwners(byte[] hints) {
+		ByteBuffer buffer = ByteBuffer.wrap(hints);
+		while (buffer.remaining() >= 2 * Long.BYTES) {
+			ownerDirectory.put(buffer.getLong(), buffer.getLong());
+		}
+	}
+
+	private Forwarder forwarder(String node, int hops) {
+		return forwarders.computeIfAbsent(node + "#" + hops, key -> {
+			Forwarder forwarder = new Forwarder(node, hops);
+			forwarder.start();
+			return forwarder;
+		});
+	}
+
+	private void indexLocally(List<RoutedBatch> batches) {
+		for (RoutedBatch batch : batches) {
+			FORWARD_FALLBACK_EVENTS_COUNTER.withoutTags().increment(batch.events.size());
+			timbermillService.handleEvents(batch.events, batch.walPosition);
+		}
+	}
+
+	@PreDestroy
+	void stop() {
+		running = false;
+		for (Forwarder forwarder : forwarders.values()) {
+			forwarder.join();
+		}
+	}
+
+	private static List<String> parseNodes(String nodes) {
+		return Arrays.stream(nodes.split(",")).map(String::trim).filter(node -> !node.isEmpty()).collect(Collectors.toList());
+	}
+
+	private static String normalize(String node) {
+		String trimmed = node.trim();
+		return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+	}
+
+	/**
+	 * Buffers the events owned by one node and sends them in batches from its own thread, so a slow node only delays its own events.
+	 * Ownership hints for the node are sent ahead of the events, best effort since a lost hint only costs cache locality.
+	 */
+	private final class Forwarder {
+		private final String node;
+		private final int hops;
+		private final URL url;
+		private final URL hintsUrl;
+		private final ConcurrentLinkedQueue<RoutedBatch> pending = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pendingEvents = new AtomicInteger();
+		private final ConcurrentLinkedQueue<long[]> hints = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pendingHints = new AtomicInteger();
+		private final Thread thread;
+		private volatile long firstPendingNanos;
+
+		Forwarder(String node, int hops) {
+			this.node = node;
+			this.hops = hops;
+			try {
+				this.url = new URL(node + INTERNAL_EVENTS_PATH);
+				this.hintsUrl = new URL(node + INTERNAL_OWNERS_PATH);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Invalid cluster node " + node, e);
+			}
+			this.thread = new Thread(this::run, "timbermill-forwarder-" + node + "-" + hops);
+			this.thread.setDaemon(true);
+		}
+
+		void hint(long taskKey, long primaryKey) {
+			if (running && pendingHints.incrementAndGet() <= maxPendingEvents) {
+				hints.add(new long[]{taskKey, primaryKey});
+			} else {
+				pendingHints.decrementAndGet();
+			}
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		boolean add(List<Event> events, long walPosition) {
+			if (!running) {
+				return false;
+			}
+			if (pendingEvents.addAndGet(events.size()) > maxPendingEvents) {
+				pendingEvents.addAndGet(-events.size());
+				return false;
+			}
+			if (pending.isEmpty()) {
+				firstPendingNanos = System.nanoTime();
+			}
+			timbermillService.retainDurably(walPosition);
+			pending.add(new RoutedBatch(events, walPosition));
+			return true;
+		}
+
+		private void run() {
+			while (running || pendingEvents.get() > 0) {
+				if (pendingHints.get() > 0) {
+					sendHints();
+				}
+				int amount = pendingEvents.get();
+				if (amount == 0 || (running && amount < batchEvents && System.nanoTime() - firstPendingNanos < lingerNanos)) {
+					LockSupport.parkNanos(Math.max(1, lingerNanos / 4));
+					continue;
+				}
+				// Routed batches are kept whole, so each one's write-ahead log position is released once
+				List<RoutedBatch> batches = new ArrayList<>();
+				List<Event> batch = new ArrayList<>(Math.min(amount, batchEvents));
+				RoutedBatch routedBatch;
+				while (batch.size() < batchEvents && (routedBatch = pending.poll()) != null) {
+					batches.add(routedBatch);
+					batch.addAll(routedBatch.events);
+				}
+				pendingEvents.addAndGet(-batch.size());
+				firstPendingNanos = System.nanoTime();
+				send(batch, batches);
+			}
+		}
+
+		private void send(List<Event> batch, List<RoutedBatch> batches) {
+			for (int tryNumber = 1; tryNumber <= tries; tryNumber++) {
+				try {
+					int status = post(url, EventsCodec.SMILE_CONTENT_TYPE, EventsCodec.encode(batch));
+					if (status == HttpURLConnection.HTTP_OK) {
+						FORWARDED_EVENTS_COUNTER.withTag("node", node).increment(batch.size());
+						// The owner acknowledged the events, durably when it runs in durable mode too
+						for (RoutedBatch routedBatch : batches) {
+							timbermillService.releaseDurably(routedBatch.walPosition);
+						}
+						return;
+					}
+					LOG.debug("Node {} answered {} to {} forwarded events", node, status, batch.size());
+				} catch (IOException e) {
+					LOG.debug("Failed forwarding {} events to node {}", batch.size(), node, e);
+				}
+				if (tryNumber < tries) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_BACKOFF_MILLIS * tryNumber));
+				}
+			}
+			LOG.warn("Node {} did not accept {} forwarded events after {} tries, indexing them locally", node, batch.size(), tries);
+			indexLocally(batches);
+		}
+
+		private void sendHints() {
+			int amount = Math.min(pendingHints.get(), batchEvents);
+			ByteBuffer body = ByteBuffer.allocate(amount * 2 * Long.BYTES);
+			long[] hint;
+			while (body.hasRemaining() && (hint = hints.poll()) != null) {
+				body.putLong(hint[0]).putLong(hint[1]);
+			}
+			pendingHints.addAndGet(-body.position() / (2 * Long.BYTES));
+			try {
+				int status = post(hintsUrl, HINTS_CONTENT_TYPE, Arrays.copyOf(body.array(), body.position()));
+				if (status != HttpURLConnection.HTTP_OK) {
+					LOG.debug("Node {} answered {} to ownership hints", node, status);
+				}
+			} catch (IOException e) {
+				LOG.debug("Failed sending ownership hints to node {}", node, e);
+			}
+		}
+
+		private int post(URL target, String contentType, byte[] body) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			connection.setFixedLengthStreamingMode(body.length);
+			connection.setRequestProperty("Content-Type", contentType);
+			connection.setRequestProperty(FORWARD_HOPS_HEADER, String.valueOf(hops));
+			if (secret != null) {
+				connection.setRequestProperty(CLUSTER_SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+			}
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+			int status = connection.getResponseCode();
+			// Reading the response to its end lets the connection be reused
+			InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (response != null) {
+				try (InputStream in = response) {
+					IOUtils.toByteArray(in);
+				}
+			}
+			return status;
+		}
+
+		void join() {
+			try {
+				thread.join((long) timeoutMillis * tries + lingerNanos / 1_000_000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final class RoutedBatch {
+		private final List<Event> events;
+		private final long walPosition;
+
+		RoutedBatch(List<Event> events, long walPosition) {
+			this.events = events;
+			this.walPosition = walPosition;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.datorama.oss.timbermill.unit.ErrorEvent;
+import com.datorama.oss.timbermill.unit.Event;
+import com.datorama.oss.timbermill.unit.SpotEvent;
+import com.datorama.oss.timbermill.unit.SuccessEvent;
+
+/**
+ * Consumer side stage that holds the events of a task for up to a window before handing them out together,
+ * so a task's start, info and closing events reach the indexer in the same drained batch and are written as one
+ * document instead of an index and several updates. Tasks are handed out in the order of their first held event, each
+ * one once its closing event arrived or once its first held event is older than the window, so long running tasks
+ * still pass through with a delay of at most one window. A closed task waits behind the older tasks still open, so a
+ * quick child never reaches the indexer before the start of the parent it started within. Producers offer to the delegate directly; the held events are pulled out of it by drains,
+ * and count towards {@link #size()} so the queue is only empty once they were handed out too.
+ * Held events also count against the delegate's capacity: an offer is refused once the delegate's and the held events
+ * together fill it, so coalescing never lets more events in than the delegate alone would.
+ * At most {@code maxHeldEvents} are held, beyond that the oldest tasks are handed out before their window ends.
+ */
+final class CoalescingQueue extends AbstractQueue<Event> implements BlockingQueue<Event> {
+
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final BlockingQueue<Event> delegate;
+	private final long windowNanos;
+	private final int maxHeldEvents;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Guarded by lock, held tasks in order of their first held event, and the open ones among them by task id
+	private final ArrayDeque<HeldTask> heldTasks = new ArrayDeque<>();
+	private final HashMap<String, HeldTask> openTasks = new HashMap<>();
+	private final AtomicInteger heldEvents = new AtomicInteger();
+	private final int capacity;
+	// Events in the delegate and held, offers reserve their room here before they reach the delegate
+	private final AtomicInteger admittedEvents = new AtomicInteger();
+	private volatile boolean flushing;
+
+	CoalescingQueue(BlockingQueue<Event> delegate, long windowMillis, int maxHeldEvents) {
+		this.delegate = delegate;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.maxHeldEvents = maxHeldEvents;
+		this.capacity = (int) Math.min(Integer.MAX_VALUE, (long) delegate.size() + delegate.remainingCapacity());
+		this.admittedEvents.set(delegate.size());
+	}
+
+	static boolean closesTask(Event event) {
+		return event instanceof SuccessEvent || event instanceof ErrorEvent || event instanceof SpotEvent;
+	}
+
+	/**
+	 * Hands out every held event regardless of its window from now on, used before the queues are saved on shutdown.
+	 */
+	void flush() {
+		flushing = true;
+	}
+
+	@Override
+	public boolean offer(Event event) {
+		if (admittedEvents.incrementAndGet() > capacity) {
+			admittedEvents.decrementAndGet();
+			return false;
+		}
+		if (!delegate.offer(event)) {
+			admittedEvents.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean offer(Event event, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(event)) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			park();
+		}
+		return true;
+	}
+
+	@Override
+	public void put(Event event) throws InterruptedException {
+		while (!offer(event)) {
+			park();
+		}
+	}
+
+	@Override
+	public Event poll() {
+		List<Event> events = new ArrayList<>(1);
+		drainTo(events, 1);
+		return events.isEmpty() ? null : events.get(0);
+	}
+
+	@Override
+	public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Event event;
+		while ((event = poll()) == null) {
+			if (System.nanoTime() >= deadline) {
+				return null;
+			}
+			park();
+		}
+		return event;
+	}
+
+	@Override
+	public Event take() throws InterruptedException {
+		Event event;
+		while ((event = poll()) == null) {
+			park();
+		}
+		return event;
+	}
+
+	@Override
+	public Event peek() {
+		lock.lock();
+		try {
+			HeldTask task = heldTasks.peekFirst();
+			if (task != null) {
+				return task.events.peekFirst();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return delegate.peek();
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		lock.lock();
+		try {
+			hold();
+			return handOut(c, maxElements);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			heldTasks.clear();
+			openTasks.clear();
+			heldEvents.set(0);
+			delegate.clear();
+			admittedEvents.set(0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return delegate.size() + heldEvents.get();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return heldEvents.get() == 0 && delegate.isEmpty();
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Math.max(0, capacity - admittedEvents.get());
+	}
+
+	/**
+	 * Snapshot of the held events followed by the delegate's, meant for inspection only.
+	 */
+	@Override
+	public Iterator<Event> iterator() {
+		List<Event> events = new ArrayList<>(size());
+		lock.lock();
+		try {
+			for (HeldTask task : heldTasks) {
+				events.addAll(task.events);
+			}
+		} finally {
+			lock.unlock();
+		}
+		events.addAll(delegate);
+		return Collections.unmodifiableList(events).iterator();
+	}
+
+	private void hold() {
+		int room = maxHeldEvents - heldEvents.get();
+		if (room <= 0) {
+			return;
+		}
+		List<Event> pulled = new ArrayList<>(Math.min(room, Math.max(1, delegate.size())));
+		delegate.drainTo(pulled, room);
+		long now = System.nanoTime();
+		int coalesced = 0;
+		for (Event event : pulled) {
+			String taskId = event.getTaskId();
+			HeldTask task = taskId != null ? openTasks.get(taskId) : null;
+			if (task == null) {
+				task = new HeldTask(taskId, now);
+				heldTasks.addLast(task);
+				if (taskId != null) {
+					openTasks.put(taskId, task);
+				}
+			} else {
+				coalesced++;
+			}
+			task.events.addLast(event);
+			if (taskId == null || closesTask(event)) {
+				// Later events of the task start a new one, behind the events that arrived in between
+				task.closed = true;
+				openTasks.remove(taskId, task);
+			}
+		}
+		heldEvents.addAndGet(pulled.size());
+		if (coalesced > 0) {
+			PipelineMetrics.recordCoalesced(coalesced);
+		}
+	}
+
+	private int handOut(Collection<? super Event> c, int maxElements) {
+		int handedOut = 0;
+		long now = System.nanoTime();
+		while (handedOut < maxElements && !heldTasks.isEmpty()) {
+			HeldTask task = heldTasks.peekFirst();
+			boolean overHeld = heldEvents.get() - handedOut >= maxHeldEvents;
+			if (!task.closed && !flushing && !overHeld && now - task.firstHeldNanos < windowNanos) {
+				break;
+			}
+			handedOut += task.handOut(c, maxElements - handedOut);
+			if (task.events.isEmpty()) {
+				heldTasks.pollFirst();
+				if (!task.closed) {
+					openTasks.remove(task.taskId, task);
+				}
+			}
+		}
+		heldEvents.addAndGet(-handedOut);
+		admittedEvents.addAndGet(-handedOut);
+		return handedOut;
+	}
+
+	private static void park() throws InterruptedException {
+		LockSupport.parkNanos(PARK_NANOS);
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	private static final class HeldTask {
+		private final String taskId;
+		private final long firstHeldNanos;
+		private final ArrayDeque<Event> events = new ArrayDeque<>(4);
+		private boolean closed;
+
+		HeldTask(String taskId, long firstHeldNanos) {
+			this.taskId = taskId;
+			this.firstHeldNanos = firstHeldNanos;
+		}
+
+		int handOut(Collection<? super Event> c, int maxElements) {
+			int handedOut = 0;
+			while (handedOut < maxElements && !events.isEmpty()) {
+				c.add(events.pollFirst());
+				handedOut++;
+			}
+			return handedOut;
+		}
+	}
+}
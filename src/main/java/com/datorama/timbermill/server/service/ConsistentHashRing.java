@@ -0,0 +1,72 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable consistent hash ring of cluster nodes, each placed at {@code virtualNodes} points so keys spread evenly.
+ * Adding or removing a node only moves the keys of the ring arcs it takes or gives back, about 1/N of them.
+ * Points are kept in sorted primitive arrays, so an owner lookup is a binary search that allocates nothing.
+ */
+final class ConsistentHashRing {
+
+	private final List<String> nodes;
+	private final long[] points;
+	private final String[] owners;
+
+	ConsistentHashRing(List<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("A ring needs at least one node");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		int virtualNodesPerNode = Math.max(1, virtualNodes);
+		long[] unsortedPoints = new long[nodes.size() * virtualNodesPerNode];
+		int[] nodeOfPoint = new int[unsortedPoints.length];
+		for (int node = 0; node < nodes.size(); node++) {
+			for (int i = 0; i < virtualNodesPerNode; i++) {
+				int point = node * virtualNodesPerNode + i;
+				unsortedPoints[point] = hash(nodes.get(node) + "#" + i);
+				nodeOfPoint[point] = node;
+			}
+		}
+		Integer[] order = new Integer[unsortedPoints.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (first, second) -> Long.compare(unsortedPoints[first], unsortedPoints[second]));
+		points = new long[order.length];
+		owners = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			points[i] = unsortedPoints[order[i]];
+			owners[i] = nodes.get(nodeOfPoint[order[i]]);
+		}
+	}
+
+	List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return the node owning the key, the first one clockwise from the key's hash.
+	 */
+	String ownerOf(String key) {
+		return ownerOf(hash(key));
+	}
+
+	/**
+	 * Same as {@link #ownerOf(String)} for a key that was already hashed with {@link EventsDeduplicator#fingerprint(CharSequence)}.
+	 */
+	String ownerOf(long keyHash) {
+		int index = Arrays.binarySearch(points, keyHash);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return owners[index == points.length ? 0 : index];
+	}
+
+	private static long hash(String key) {
+		return EventsDeduplicator.fingerprint(key);
+	}
+}
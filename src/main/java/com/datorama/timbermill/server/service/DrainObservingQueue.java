@@ -0,0 +1,117 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.google.common.util.concurrent.ForwardingBlockingQueue;
+
+/**
+ * Consumer side view of an event queue that reports the size of every drained batch.
+ * Only the consuming thread uses it, producers keep offering to the delegate directly.
+ * Once closed it looks empty to its consumer, so a consumer draining until the queue is empty stops after its
+ * current batch and leaves the rest in the delegate.
+ */
+final class DrainObservingQueue extends ForwardingBlockingQueue<Event> {
+
+	private final BlockingQueue<Event> delegate;
+	private final IntConsumer drainListener;
+	private final Consumer<List<Event>> drainedEventsListener;
+	private final Runnable handledListener;
+	private volatile boolean closed;
+	// Only touched by the consuming thread
+	private boolean drainPending;
+	private boolean drainedSinceTaken;
+
+	DrainObservingQueue(BlockingQueue<Event> delegate, IntConsumer drainListener) {
+		this(delegate, drainListener, null);
+	}
+
+	/**
+	 * @param drainedEventsListener also given every drained batch, when the drain target is a list.
+	 */
+	DrainObservingQueue(BlockingQueue<Event> delegate, IntConsumer drainListener, Consumer<List<Event>> drainedEventsListener) {
+		this(delegate, drainListener, drainedEventsListener, null);
+	}
+
+	/**
+	 * @param handledListener told when the consumer comes back to the queue after a drain, by then it handled the
+	 *                        drained batch.
+	 */
+	DrainObservingQueue(BlockingQueue<Event> delegate, IntConsumer drainListener, Consumer<List<Event>> drainedEventsListener, Runnable handledListener) {
+		this.delegate = delegate;
+		this.drainListener = drainListener;
+		this.drainedEventsListener = drainedEventsListener;
+		this.handledListener = handledListener;
+	}
+
+	@Override
+	protected BlockingQueue<Event> delegate() {
+		return delegate;
+	}
+
+	/**
+	 * Stops handing out events, they stay in the delegate.
+	 */
+	void close() {
+		closed = true;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return whether a batch was drained since the last call, so the consumer can tell its idle passes apart.
+	 */
+	boolean takeDrained() {
+		boolean drained = drainedSinceTaken;
+		drainedSinceTaken = false;
+		return drained;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		drainHandled();
+		return closed || delegate.isEmpty();
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c, int maxElements) {
+		drainHandled();
+		if (closed) {
+			return 0;
+		}
+		int drained = delegate.drainTo(c, maxElements);
+		if (drained > 0) {
+			drainPending = handledListener != null;
+			drainedSinceTaken = true;
+			drainListener.accept(drained);
+			if (drainedEventsListener != null && c instanceof List) {
+				drainedEventsListener.accept(lastElements((List<?>) c, drained));
+			}
+		}
+		return drained;
+	}
+
+	private void drainHandled() {
+		if (drainPending) {
+			drainPending = false;
+			handledListener.run();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Event> lastElements(List<?> list, int amount) {
+		// Only events were drained into the list
+		return (List<Event>) list.subList(list.size() - amount, list.size());
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+}
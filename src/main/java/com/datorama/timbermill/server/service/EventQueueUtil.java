@@ -0,0 +1,58 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Creates the in-memory event queues according to the EVENT_QUEUE_STRATEGY configuration.
+ * Every strategy is a plain {@link BlockingQueue}, so {@code LocalOutputPipe.pushEventToQueues} and
+ * {@code ElasticsearchUtil.drainAndIndex} work on top of it unchanged.
+ */
+final class EventQueueUtil {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EventQueueUtil.class);
+
+	static final String LINKED = "linked";
+	// Pre-allocates a ring of EVENT_QUEUE_CAPACITY rounded up to a power of two, at most 2^30
+	static final String RING = "ring";
+	// Keeps queued events serialized in direct memory, size -XX:MaxDirectMemorySize for the expected backlog
+	static final String OFFHEAP = "offheap";
+
+	private EventQueueUtil() {
+	}
+
+	/**
+	 * Queued events of an off-heap queue are not on the heap, the heap budget of the queues doesn't apply to them.
+	 */
+	static boolean isOffHeap(String strategy) {
+		return OFFHEAP.equalsIgnoreCase(strategy);
+	}
+
+	/**
+	 * Queue for a lane of a {@link PriorityLanesQueue}, which bounds its lanes together, so a lane only takes memory
+	 * for the events it holds. A ring buffer would pre-allocate the whole capacity for every lane, its lanes are linked.
+	 */
+	static BlockingQueue<Event> getLaneQueue(String strategy) {
+		return isOffHeap(strategy) ? new OffHeapEventQueue(Integer.MAX_VALUE) : new LinkedBlockingQueue<>();
+	}
+
+	static BlockingQueue<Event> getEventQueue(String strategy, int capacity) {
+		String queueStrategy = strategy == null ? LINKED : strategy.toLowerCase();
+		switch (queueStrategy) {
+			case RING:
+				return new RingBufferBlockingQueue<>(capacity);
+			case OFFHEAP:
+				return new OffHeapEventQueue(capacity);
+			case LINKED:
+				return new LinkedBlockingQueue<>(capacity);
+			default:
+				LOG.warn("Unknown event queue strategy {}, using {}", strategy, LINKED);
+				return new LinkedBlockingQueue<>(capacity);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Heap budget shared by all the in-memory event queues, in estimated bytes.
+ * {@link AsyncBodyReader} also bounds the buffers of the bodies it reads with one, in actual bytes.
+ * The estimate only looks at string lengths and map sizes, so it is cheap enough to compute on every enqueue and dequeue,
+ * and deterministic, so the same event is released with the bytes it was acquired with.
+ */
+final class EventsByteBudget {
+
+	private static final int EVENT_OVERHEAD_BYTES = 256;
+	private static final int ENTRY_OVERHEAD_BYTES = 64;
+	private static final int NUMBER_BYTES = 16;
+
+	private volatile long maxBytes;
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	EventsByteBudget(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	boolean tryAcquire(long bytes) {
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + bytes > maxBytes && used > 0) {
+				return false;
+			}
+		} while (!usedBytes.compareAndSet(used, used + bytes));
+		return true;
+	}
+
+	void release(long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Lowering the budget below the used bytes only refuses new events until enough were drained.
+	 */
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	static long estimate(Event event) {
+		long bytes = EVENT_OVERHEAD_BYTES + chars(event.getTaskId()) + chars(event.getName()) + chars(event.getParentId()) + chars(event.getPrimaryId());
+		bytes += stringsMap(event.getStrings());
+		bytes += stringsMap(event.getText());
+		bytes += stringsMap(event.getContext());
+		Map<String, Number> metrics = event.getMetrics();
+		if (metrics != null) {
+			for (String key : metrics.keySet()) {
+				bytes += ENTRY_OVERHEAD_BYTES + chars(key) + NUMBER_BYTES;
+			}
+		}
+		return bytes;
+	}
+
+	private static long stringsMap(Map<String, String> map) {
+		if (map == null) {
+			return 0;
+		}
+		long bytes = 0;
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			bytes += ENTRY_OVERHEAD_BYTES + chars(entry.getKey()) + chars(entry.getValue());
+		}
+		return bytes;
+	}
+
+	// Strings are Latin-1 compacted on recent JVMs, two bytes per char is the upper bound
+	private static long chars(String s) {
+		return s == null ? 0 : 2L * s.length();
+	}
+}
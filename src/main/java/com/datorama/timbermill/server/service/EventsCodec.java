@@ -0,0 +1,75 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Compact binary (Smile) encoding of {@link Event}s, used by the binary ingestion endpoint, and the plain JSON
+ * readers used by the streaming endpoints.
+ * Smile keeps the JSON data model, so it binds to the same classes and type ids as the JSON endpoints.
+ */
+final class EventsCodec {
+
+	static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+	static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+	private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory())
+			.findAndRegisterModules()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	private static final ObjectReader EVENT_READER = SMILE_MAPPER.readerFor(Event.class);
+	private static final ObjectWriter EVENTS_WRITER = SMILE_MAPPER.writerFor(new TypeReference<List<Event>>() {});
+	private static final ObjectWriter EVENT_WRITER = SMILE_MAPPER.writerFor(Event.class);
+	private static final ObjectReader EVENTS_READER = SMILE_MAPPER.readerFor(new TypeReference<List<Event>>() {});
+	private static final ObjectMapper JSON_MAPPER = new ObjectMapper()
+			.findAndRegisterModules()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	private static final ObjectReader JSON_EVENT_READER = JSON_MAPPER.readerFor(Event.class);
+
+	private EventsCodec() {
+	}
+
+	static JsonParser createSmileParser(InputStream in) throws IOException {
+		return SMILE_MAPPER.getFactory().createParser(in);
+	}
+
+	static JsonParser createJsonParser(InputStream in) throws IOException {
+		return JSON_MAPPER.getFactory().createParser(in);
+	}
+
+	static Event readJsonEvent(byte[] bytes, int offset, int length) throws IOException {
+		return JSON_EVENT_READER.readValue(bytes, offset, length);
+	}
+
+	/**
+	 * Binds the event the parser is positioned on, without building an intermediate tree.
+	 */
+	static Event readEvent(JsonParser parser) throws IOException {
+		return EVENT_READER.readValue(parser);
+	}
+
+	static byte[] encode(List<Event> events) throws IOException {
+		return EVENTS_WRITER.writeValueAsBytes(events);
+	}
+
+	static List<Event> decode(byte[] bytes) throws IOException {
+		return EVENTS_READER.readValue(bytes);
+	}
+
+	static byte[] encode(Event event) throws IOException {
+		return EVENT_WRITER.writeValueAsBytes(event);
+	}
+
+	static Event decodeEvent(byte[] bytes) throws IOException {
+		return EVENT_READER.readValue(bytes);
+	}
+}
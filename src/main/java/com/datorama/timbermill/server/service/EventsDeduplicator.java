@@ -0,0 +1,263 @@
+package com.datorama.timbermill.server.service;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.DUPLICATED_BATCHES_COUNTER;
+import static com.datorama.timbermill.server.service.ServerKamonConstants.DUPLICATED_EVENTS_COUNTER;
+
+/**
+ * Drops batches (and optionally single events) that were already received within a configurable time window,
+ * typically client retries after a timeout.
+ * Batches and events are only remembered once they were accepted, so a retry of a batch that was rejected or failed is
+ * never dropped. A retry racing its still undecided original is let through, indexing it twice rather than losing it.
+ * Remembers 64-bit fingerprints in lock-striped open-addressing tables of primitives, so a lookup allocates nothing.
+ * The table is lossy by design: when a probe run is full of live entries the oldest one is overwritten,
+ * which can only let a duplicate through, never drop a new batch (up to fingerprint collisions).
+ */
+@Component
+public class EventsDeduplicator {
+
+	private static final int STRIPES = 64;
+	private static final int MAX_PROBES = 8;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final long windowNanos;
+	private final boolean perEventDedup;
+
+	public EventsDeduplicator(@Value("${DEDUP_WINDOW_SECONDS:300}") int windowSeconds,
+							  @Value("${DEDUP_CAPACITY:1048576}") int capacity,
+							  @Value("${DEDUP_PER_EVENT:false}") boolean perEventDedup) {
+		this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+		this.perEventDedup = perEventDedup;
+		int stripeCapacity = Math.max(MAX_PROBES, Integer.highestOneBit(Math.max(1, capacity / STRIPES - 1)) << 1);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(stripeCapacity);
+		}
+	}
+
+	/**
+	 * @return the fingerprint of the batch with this id, or 0 when the batch is never deduplicated: it has no id or dedup is off.
+	 */
+	long batchFingerprint(String batchId) {
+		if (batchId == null || windowNanos <= 0) {
+			return 0;
+		}
+		return fingerprint(batchId);
+	}
+
+	/**
+	 * Same as {@link #batchFingerprint(String)} for batches without an id, the fingerprint is derived from the events themselves.
+	 */
+	long batchFingerprint(Collection<Event> events) {
+		if (events.isEmpty() || windowNanos <= 0) {
+			return 0;
+		}
+		long h = FNV_OFFSET_BASIS;
+		for (Event event : events) {
+			h = (h ^ fingerprint(event)) * FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * @return true if the batch was accepted within the window, see {@link #remember(long, Collection)}.
+	 */
+	boolean isDuplicateBatch(long batchFingerprint) {
+		if (batchFingerprint == 0) {
+			return false;
+		}
+		boolean duplicate = isSeen(batchFingerprint);
+		if (duplicate) {
+			DUPLICATED_BATCHES_COUNTER.withoutTags().increment();
+		}
+		return duplicate;
+	}
+
+	/**
+	 * Remembers an accepted batch and its events, so their retries within the window are dropped.
+	 *
+	 * @param batchFingerprint the batch's fingerprint, 0 if only its events are to be remembered.
+	 * @param events the events returned by {@link #removeDuplicateEvents(Collection)}.
+	 */
+	void remember(long batchFingerprint, Collection<Event> events) {
+		if (batchFingerprint != 0) {
+			mark(batchFingerprint);
+		}
+		if (perEventDedup && windowNanos > 0) {
+			for (Event event : events) {
+				mark(fingerprint(event));
+			}
+		}
+	}
+
+	/**
+	 * @return the given events without the ones accepted within the window, or the same collection when
+	 * per-event deduplication is off or nothing was dropped.
+	 */
+	Collection<Event> removeDuplicateEvents(Collection<Event> events) {
+		if (!perEventDedup || windowNanos <= 0) {
+			return events;
+		}
+		List<Event> unique = null;
+		int index = 0;
+		for (Event event : events) {
+			boolean duplicate = isSeen(fingerprint(event));
+			if (duplicate && unique == null) {
+				unique = new ArrayList<>(events.size());
+				int copied = 0;
+				for (Event previous : events) {
+					if (copied++ == index) {
+						break;
+					}
+					unique.add(previous);
+				}
+			} else if (!duplicate && unique != null) {
+				unique.add(event);
+			}
+			index++;
+		}
+		if (unique == null) {
+			return events;
+		}
+		DUPLICATED_EVENTS_COUNTER.withoutTags().increment(events.size() - unique.size());
+		return unique;
+	}
+
+	private boolean isSeen(long fingerprint) {
+		return stripes[(int) fingerprint & (STRIPES - 1)].contains(fingerprint, System.nanoTime(), windowNanos);
+	}
+
+	private void mark(long fingerprint) {
+		stripes[(int) fingerprint & (STRIPES - 1)].mark(fingerprint, System.nanoTime(), windowNanos);
+	}
+
+	/**
+	 * Covers the event's payload as well as its identity, so distinct events of a task logged at the same instant,
+	 * such as several info updates, never collide.
+	 */
+	static long fingerprint(Event event) {
+		long h = hash(FNV_OFFSET_BASIS, event.getTaskId());
+		h = (h ^ event.getClass().getName().hashCode()) * FNV_PRIME;
+		ZonedDateTime time = event.getTime();
+		if (time != null) {
+			h = (h ^ time.toEpochSecond()) * FNV_PRIME;
+			h = (h ^ time.getNano()) * FNV_PRIME;
+		}
+		h = hash(h, event.getName());
+		h = hash(h, event.getParentId());
+		h = hash(h, event.getPrimaryId());
+		h = (h ^ hash(event.getStrings())) * FNV_PRIME;
+		h = (h ^ hash(event.getText())) * FNV_PRIME;
+		h = (h ^ hash(event.getContext())) * FNV_PRIME;
+		Map<String, Number> metrics = event.getMetrics();
+		if (metrics != null) {
+			long metricsHash = 0;
+			for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+				Number value = metric.getValue();
+				metricsHash += mix(hash(FNV_OFFSET_BASIS, metric.getKey()) ^ (value != null ? Double.doubleToLongBits(value.doubleValue()) : 0));
+			}
+			h = (h ^ metricsHash) * FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	static long fingerprint(CharSequence value) {
+		return mix(hash(FNV_OFFSET_BASIS, value));
+	}
+
+	private static long hash(long h, CharSequence value) {
+		if (value == null) {
+			return (h ^ 0xff) * FNV_PRIME;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			h = (h ^ value.charAt(i)) * FNV_PRIME;
+		}
+		// Ends the value, so adjacent values can't trade characters
+		return (h ^ value.length()) * FNV_PRIME;
+	}
+
+	/**
+	 * Sums the entries' hashes, so the map's iteration order does not matter.
+	 */
+	private static long hash(Map<String, String> map) {
+		if (map == null) {
+			return 0;
+		}
+		long h = 0;
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			h += mix(hash(hash(FNV_OFFSET_BASIS, entry.getKey()), entry.getValue()));
+		}
+		return h;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		// 0 marks an empty slot
+		return h == 0 ? 1 : h;
+	}
+
+	private static final class Stripe {
+		private final long[] fingerprints;
+		private final long[] seenAt;
+		private final int mask;
+
+		Stripe(int capacity) {
+			fingerprints = new long[capacity];
+			seenAt = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		synchronized boolean contains(long fingerprint, long now, long windowNanos) {
+			int start = (int) (fingerprint >>> 32) & mask;
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int slot = (start + i) & mask;
+				if (fingerprints[slot] == fingerprint && now - seenAt[slot] <= windowNanos) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		synchronized void mark(long fingerprint, long now, long windowNanos) {
+			// Low bits picked the stripe, start probing from the high ones
+			int start = (int) (fingerprint >>> 32) & mask;
+			int victim = -1;
+			boolean victimExpired = false;
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int slot = (start + i) & mask;
+				long current = fingerprints[slot];
+				boolean expired = current == 0 || now - seenAt[slot] > windowNanos;
+				if (current == fingerprint) {
+					// Already there, possibly expired, refreshing it keeps a single entry per fingerprint
+					seenAt[slot] = now;
+					return;
+				}
+				if (victimExpired) {
+					continue;
+				}
+				if (expired || victim == -1 || seenAt[slot] - seenAt[victim] < 0) {
+					victim = slot;
+					victimExpired = expired;
+				}
+			}
+			fingerprints[victim] = fingerprint;
+			seenAt[victim] = now;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.datorama.oss.timbermill.common.persistence.PersistenceHandler;
+import com.datorama.oss.timbermill.unit.Event;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
+/**
+ * Holds the batches of clients that are over their rate limit, one lane per client, and feeds them into
+ * {@link TimbermillService}'s queues with deficit round robin whenever the queues have room, so over the limit every
+ * client gets a share proportional to its CLIENT_WEIGHTS weight (1 by default) instead of the noisiest one taking it all.
+ * A client holds at most CLIENT_MAX_DEFERRED_EVENTS deferred events, beyond that its batches are shed
+ * or spilled to the persistence handler according to OVER_LIMIT_ACTION, without affecting other clients.
+ * Deferred events don't hold {@link IngestionGate} permits, they are bounded by the scheduler's own
+ * FAIR_SCHEDULER_MAX_DEFERRED_EVENTS across all clients instead. The lane of a client that deferred nothing for
+ * FAIR_SCHEDULER_LANE_IDLE_MILLIS is evicted.
+ */
+@Component
+public class FairBatchScheduler {
+
+	static final String SHED = "shed";
+	static final String SPILL = "spill";
+
+	private static final Logger LOG = LoggerFactory.getLogger(FairBatchScheduler.class);
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Lane> activeLanes = new ConcurrentLinkedQueue<>();
+	private final Map<String, Integer> weights;
+	private final Function<String, Lane> newLane;
+	private final int maxDeferredEventsPerClient;
+	private final String overLimitAction;
+	private final int quantum;
+	private final double maxQueuesFillRatio;
+	private final long maxDeferredEvents;
+	private final long laneIdleMillis;
+	private final AtomicLong totalDeferredEvents = new AtomicLong();
+	private long nextEvictionMillis;
+	private volatile boolean running = true;
+	private Thread schedulerThread;
+
+	@Autowired
+	private TimbermillService timbermillService;
+
+	@Autowired
+	private ClientRateLimiter clientRateLimiter;
+
+	@Autowired
+	private ClusterRouter clusterRouter;
+
+	public FairBatchScheduler(@Value("${CLIENT_WEIGHTS:}") String clientWeights,
+							  @Value("${CLIENT_MAX_DEFERRED_EVENTS:1000000}") int maxDeferredEventsPerClient,
+							  @Value("${OVER_LIMIT_ACTION:shed}") String overLimitAction,
+							  @Value("${FAIR_SCHEDULER_QUANTUM:1000}") int quantum,
+							  @Value("${FAIR_SCHEDULER_MAX_QUEUES_FILL_RATIO:0.5}") double maxQueuesFillRatio,
+							  @Value("${FAIR_SCHEDULER_MAX_DEFERRED_EVENTS:5000000}") long maxDeferredEvents,
+							  @Value("${FAIR_SCHEDULER_LANE_IDLE_MILLIS:600000}") long laneIdleMillis) {
+		this.weights = parseWeights(clientWeights);
+		this.newLane = client -> new Lane(client, weights.getOrDefault(client, 1));
+		this.maxDeferredEvents = maxDeferredEvents;
+		this.laneIdleMillis = laneIdleMillis;
+		this.maxDeferredEventsPerClient = maxDeferredEventsPerClient;
+		this.overLimitAction = overLimitAction.toLowerCase();
+		this.quantum = quantum;
+		this.maxQueuesFillRatio = maxQueuesFillRatio;
+	}
+
+	@PostConstruct
+	void start() {
+		if (!clientRateLimiter.isEnabled()) {
+			return;
+		}
+		schedulerThread = new Thread(this::run, "timbermill-fair-scheduler");
+		schedulerThread.setDaemon(true);
+		schedulerThread.start();
+	}
+
+	/**
+	 * Reserves room for a batch of a client that is over its limit, every successful call must be followed by
+	 * {@link #defer(String, Collection, long)} or {@link #unreserve(String, int)}.
+	 */
+	boolean reserve(String client, int eventsAmount) {
+		// A single batch larger than the whole allowance is still deferred when nothing else is
+		if (totalDeferredEvents.addAndGet(eventsAmount) > maxDeferredEvents && totalDeferredEvents.get() > eventsAmount) {
+			totalDeferredEvents.addAndGet(-eventsAmount);
+			return false;
+		}
+		// Runs on every over-limit request, so only a new client's lane allocates
+		while (true) {
+			Lane lane = lanes.get(client);
+			if (lane == null) {
+				lane = lanes.computeIfAbsent(client, newLane);
+			}
+			lane.lastReservedMillis = System.currentTimeMillis();
+			int deferredEvents = lane.deferredEvents.addAndGet(eventsAmount);
+			// Eviction only drops a lane with no deferred events, if it still holds this one the reservation keeps it there
+			if (lanes.get(client) != lane) {
+				lane.deferredEvents.addAndGet(-eventsAmount);
+				continue;
+			}
+			if (deferredEvents > maxDeferredEventsPerClient && deferredEvents > eventsAmount) {
+				lane.deferredEvents.addAndGet(-eventsAmount);
+				totalDeferredEvents.addAndGet(-eventsAmount);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	void unreserve(String client, int eventsAmount) {
+		lanes.get(client).deferredEvents.addAndGet(-eventsAmount);
+		totalDeferredEvents.addAndGet(-eventsAmount);
+	}
+
+	/**
+	 * Queues a reserved batch in its client's lane.
+	 */
+	void defer(String client, Collection<Event> events, long walPosition) {
+		Lane lane = lanes.get(client);
+		lane.batches.add(new DeferredBatch(events, walPosition));
+		DEFERRED_EVENTS_COUNTER.withoutTags().increment(events.size());
+		if (lane.active.compareAndSet(false, true)) {
+			activeLanes.add(lane);
+		}
+	}
+
+	/**
+	 * Spills a batch that could not be deferred to the persistence handler, when OVER_LIMIT_ACTION is spill.
+	 *
+	 * @return whether the batch was spilled, false means it should be rejected.
+	 */
+	boolean spill(String client, Collection<Event> events) {
+		PersistenceHandler persistenceHandler = timbermillService.getPersistenceHandler();
+		if (!SPILL.equals(overLimitAction) || persistenceHandler == null) {
+			return false;
+		}
+		persistenceHandler.persistEvents(new ArrayList<>(events));
+		SPILLED_CLIENT_EVENTS_COUNTER.withoutTags().increment(events.size());
+		LOG.debug("Spilled {} events of client {} that is over its limit", events.size(), client);
+		return true;
+	}
+
+	private void run() {
+		while (running) {
+			Lane lane = activeLanes.poll();
+			evictIdleLanes();
+			if (lane == null || timbermillService.getQueuesFillRatio() >= maxQueuesFillRatio) {
+				if (lane != null) {
+					activeLanes.add(lane);
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			try {
+				serve(lane);
+			} catch (RuntimeException e) {
+				LOG.error("Failed pushing deferred events of client {}", lane.client, e);
+			}
+		}
+	}
+
+	/**
+	 * Lanes of clients that stopped going over their limit would otherwise be kept for as long as the server runs.
+	 */
+	private void evictIdleLanes() {
+		long now = System.currentTimeMillis();
+		if (now < nextEvictionMillis) {
+			return;
+		}
+		nextEvictionMillis = now + Math.max(1, laneIdleMillis / 10);
+		for (String client : lanes.keySet()) {
+			// A lane without deferred events has no batch queued or reserved, a reservation racing this re-checks the map
+			lanes.computeIfPresent(client, (key, lane) -> lane.deferredEvents.get() == 0 && now - lane.lastReservedMillis >= laneIdleMillis ? null : lane);
+		}
+	}
+
+	private void serve(Lane lane) {
+		lane.deficit += (long) quantum * lane.weight;
+		DeferredBatch batch;
+		while ((batch = lane.batches.peek()) != null && batch.events.size() <= lane.deficit) {
+			lane.batches.poll();
+			int eventsAmount = batch.events.size();
+			lane.deficit -= eventsAmount;
+			lane.deferredEvents.addAndGet(-eventsAmount);
+			totalDeferredEvents.addAndGet(-eventsAmount);
+			// Routed only now, so the events a client is over its limit with are held back on every node alike
+			timbermillService.handleEvents(clusterRouter.route(batch.events, batch.walPosition), batch.walPosition);
+		}
+		if (lane.batches.isEmpty()) {
+			lane.deficit = 0;
+			lane.active.set(false);
+			// A batch deferred between the check and the flag reset must not be left behind
+			if (!lane.batches.isEmpty() && lane.active.compareAndSet(false, true)) {
+				activeLanes.add(lane);
+			}
+		} else {
+			activeLanes.add(lane);
+		}
+	}
+
+	@PreDestroy
+	void stop() {
+		running = false;
+		if (schedulerThread != null) {
+			try {
+				schedulerThread.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// Deferred batches were acknowledged, push them on the way out
+		for (Lane lane : lanes.values()) {
+			DeferredBatch batch;
+			while ((batch = lane.batches.poll()) != null) {
+				timbermillService.handleEvents(batch.events, batch.walPosition);
+			}
+		}
+	}
+
+	private static Map<String, Integer> parseWeights(String clientWeights) {
+		Map<String, Integer> weights = new HashMap<>();
+		for (String entry : clientWeights.split(",")) {
+			String[] clientWeight = entry.trim().split(":");
+			if (clientWeight.length == 2) {
+				weights.put(clientWeight[0].trim(), Math.max(1, Integer.parseInt(clientWeight[1].trim())));
+			}
+		}
+		return weights;
+	}
+
+	private static final class Lane {
+		private final String client;
+		private final int weight;
+		private final ConcurrentLinkedQueue<DeferredBatch> batches = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger deferredEvents = new AtomicInteger();
+		private final AtomicBoolean active = new AtomicBoolean();
+		private volatile long lastReservedMillis;
+		// Only touched by the scheduler thread
+		private long deficit;
+
+		Lane(String client, int weight) {
+			this.client = client;
+			this.weight = weight;
+		}
+	}
+
+	private static final class DeferredBatch {
+		private final Collection<Event> events;
+		private final long walPosition;
+
+		DeferredBatch(Collection<Event> events, long walPosition) {
+			this.events = events;
+			this.walPosition = walPosition;
+		}
+	}
+}
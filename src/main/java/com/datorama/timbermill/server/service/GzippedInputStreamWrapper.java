@@ -5,7 +5,6 @@ import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
@@ -22,8 +21,12 @@ import com.google.common.collect.Multimap;
 import com.google.common.io.ByteStreams;
 import com.google.common.net.HttpHeaders;
 
+import static com.datorama.oss.timbermill.common.KamonConstants.GZIP_DECOMPRESS_REQUEST_DURATION;
+
 /**
- * Wrapper class that detects if the request is gzipped and ungzipps it.
+ * Wrapper class that ungzipps a gzipped request body while it is being read.
+ * The body is inflated through pooled buffers straight into whoever consumes the input stream (usually the JSON parser),
+ * only a bounded {@link BodyCapture} of it is kept for error reporting.
  */
 final class GzippedInputStreamWrapper extends HttpServletRequestWrapper {
 
@@ -35,71 +38,139 @@ final class GzippedInputStreamWrapper extends HttpServletRequestWrapper {
 	 */
 	static final String DEFAULT_ENCODING = WebUtils.DEFAULT_CHARACTER_ENCODING;
 
-	/**
-	 * Serialized bytes array that is a result of unzipping gzipped body.
-	 */
-	private byte[] bytes;
+	private final PooledGzipInputStream gzipStream;
+	private final BodyCapture bodyCapture = new BodyCapture();
+	private ServletInputStream servletInputStream;
+	private BufferedReader reader;
+	private byte[] fullBody;
+	private boolean released;
 
 	/**
 	 * Constructs a request object wrapping the given request.
-	 * In case if Content-Encoding contains "gzip" we wrap the input stream into byte array
-	 * to original input stream has nothing in it but hew wrapped input stream always returns
-	 * reproducible ungzipped input stream.
+	 * Nothing is read here, the original input stream is inflated lazily by the stream returned from {@link #getInputStream()}.
 	 *
 	 * @param request request which input stream will be wrapped.
-	 * @throws java.io.IOException when input stream reqtieval failed.
+	 * @throws java.io.IOException when input stream retrieval failed.
 	 */
 	GzippedInputStreamWrapper(final HttpServletRequest request) throws IOException {
 		super(request);
-		try {
-			final InputStream in = new GZIPInputStream(request.getInputStream());
-			bytes = ByteStreams.toByteArray(in);
-		} catch (EOFException e) {
-			bytes = new byte[0];
-		}
+		gzipStream = new PooledGzipInputStream(request.getInputStream());
 	}
 
 
 	/**
-	 * @return reproduceable input stream that is either equal to initial servlet input
-	 * stream(if it was not zipped) or returns unzipped input stream.
+	 * @return the ungzipped input stream. The body is streamed, so every call returns the same single-use stream.
 	 */
 	@Override public ServletInputStream getInputStream() {
-		final ByteArrayInputStream sourceStream = new ByteArrayInputStream(bytes);
-		return new ServletInputStream() {
-			private ReadListener readListener;
+		if (servletInputStream == null) {
+			servletInputStream = fullBody != null ? new ByteArrayServletInputStream(fullBody) : new InflatingServletInputStream();
+		}
+		return servletInputStream;
+	}
 
-			@Override public boolean isFinished() {
-				return sourceStream.available() <= 0;
-			}
+	@Override public BufferedReader getReader() throws IOException {
+		if (reader == null) {
+			reader = new BufferedReader(new InputStreamReader(getInputStream(), getCharacterEncoding()));
+		}
+		return reader;
+	}
 
-			@Override public boolean isReady() {
-				return sourceStream.available() > 0;
-			}
+	/**
+	 * @return the bounded capture of the ungzipped bytes that were read from the body so far.
+	 */
+	BodyCapture getBodyCapture() {
+		return bodyCapture;
+	}
+
+	/**
+	 * Returns the pooled inflater resources and reports the time spent decompressing. Safe to call more than once.
+	 */
+	void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		GZIP_DECOMPRESS_REQUEST_DURATION.withoutTags().record(gzipStream.getInflateNanos());
+		try {
+			gzipStream.close();
+		} catch (IOException e) {
+			LOG.warn("Failed closing gzipped request stream", e);
+		}
+	}
 
-			@Override public void setReadListener(ReadListener readListener) {
-				this.readListener = readListener;
+	/**
+	 * Reads block on the wrapped stream, so it always reports itself ready. When the request was buffered by
+	 * {@link AsyncBodyReader} the wrapped stream is in memory and never actually blocks.
+	 */
+	private class InflatingServletInputStream extends ServletInputStream {
+		private ReadListener readListener;
+
+		@Override public boolean isFinished() {
+			return gzipStream.isFinished();
+		}
+
+		@Override public boolean isReady() {
+			return true;
+		}
+
+		@Override public void setReadListener(ReadListener readListener) {
+			this.readListener = readListener;
+			try {
+				readListener.onDataAvailable();
+			} catch (IOException e) {
+				readListener.onError(e);
 			}
+		}
 
-			public ReadListener getReadListener() {
-				return readListener;
+		@Override public int read() throws IOException {
+			int b = gzipStream.read();
+			if (b != -1) {
+				bodyCapture.write(b);
 			}
+			notifyIfFinished(b);
+			return b;
+		}
 
-			public int read() {
-				return sourceStream.read();
+		@Override public int read(byte[] b, int off, int len) throws IOException {
+			int n = gzipStream.read(b, off, len);
+			bodyCapture.write(b, off, n);
+			notifyIfFinished(n);
+			return n;
+		}
+
+		private void notifyIfFinished(int read) throws IOException {
+			if (read == -1 && readListener != null) {
+				ReadListener listener = readListener;
+				readListener = null;
+				listener.onAllDataRead();
 			}
+		}
+
+		@Override public void close() {
+			release();
+		}
+	}
 
-			@Override
-			public void close() throws IOException {
-				super.close();
-				sourceStream.close();
+	/**
+	 * Inflates the whole body into memory, only used for form-urlencoded requests that need their parameters parsed.
+	 */
+	private byte[] getFullBody() throws IOException {
+		if (fullBody == null) {
+			try {
+				fullBody = ByteStreams.toByteArray(gzipStream);
+			} catch (EOFException e) {
+				fullBody = new byte[0];
+			} finally {
+				release();
 			}
-		};
+			servletInputStream = null;
+		}
+		return fullBody;
 	}
 
 	/**
-	 * Need to override getParametersMap because we initially read the whole input stream and
-	 * servlet container won't have access to the input stream data.
+	 * Need to override getParametersMap because the original input stream is gzipped and
+	 * servlet container can't parse it.
 	 *
 	 * @return parsed parameters list. Parameters get parsed only when Content-Type
 	 * "application/x-www-form-urlencoded" is set.
@@ -109,8 +180,8 @@ final class GzippedInputStreamWrapper extends HttpServletRequestWrapper {
 		if (!Strings.isNullOrEmpty(contentEncodingHeader) && contentEncodingHeader.contains("application/x-www-form-urlencoded")) {
 			Map<String, String[]> params = new HashMap<>(super.getParameterMap());
 			try {
-				params.putAll(parseParams(new String(bytes)));
-			} catch (UnsupportedEncodingException e) {
+				params.putAll(parseParams(new String(getFullBody(), getCharacterEncoding())));
+			} catch (IOException e) {
 				LOG.error("Could not decompress incoming message!", e);
 			}
 			return params;
@@ -0,0 +1,66 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+
+import com.datorama.oss.timbermill.unit.EventsList;
+import com.datorama.oss.timbermill.unit.EventsWrapper;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Measures body size and parse time of the JSON bound endpoints, which Spring parses before the controller runs.
+ */
+@ControllerAdvice
+public class IngestRequestBodyAdvice extends RequestBodyAdviceAdapter {
+
+	@Override
+	public boolean supports(MethodParameter methodParameter, Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+		return targetType == EventsWrapper.class || targetType == EventsList.class;
+	}
+
+	@Override
+	public HttpInputMessage beforeBodyRead(HttpInputMessage inputMessage, MethodParameter parameter, Type targetType,
+										   Class<? extends HttpMessageConverter<?>> converterType) throws IOException {
+		return new MeasuredInputMessage(inputMessage);
+	}
+
+	@Override
+	public Object afterBodyRead(Object body, HttpInputMessage inputMessage, MethodParameter parameter, Type targetType,
+								Class<? extends HttpMessageConverter<?>> converterType) {
+		if (inputMessage instanceof MeasuredInputMessage) {
+			MeasuredInputMessage measured = (MeasuredInputMessage) inputMessage;
+			PipelineMetrics.Endpoint endpoint = targetType == EventsWrapper.class ? PipelineMetrics.Endpoint.EVENTS : PipelineMetrics.Endpoint.EVENTS_V2;
+			endpoint.recordParsed(measured.body.getCount(), System.nanoTime() - measured.startTime);
+		}
+		return body;
+	}
+
+	private static final class MeasuredInputMessage implements HttpInputMessage {
+		private final HttpHeaders headers;
+		private final CountingInputStream body;
+		private final long startTime = System.nanoTime();
+
+		MeasuredInputMessage(HttpInputMessage inputMessage) throws IOException {
+			headers = inputMessage.getHeaders();
+			body = new CountingInputStream(inputMessage.getBody());
+		}
+
+		@Override
+		public InputStream getBody() {
+			return body;
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
+/**
+ * Admission stage in front of the receiving executor.
+ * Counts events that were accepted by the REST endpoints but not yet pushed into {@link TimbermillService}'s queues,
+ * and refuses new requests once that backlog or the service's queues are too full, so clients back off instead of
+ * the server running out of heap.
+ */
+@Component
+public class IngestionGate {
+
+	private static final Logger LOG = LoggerFactory.getLogger(IngestionGate.class);
+
+	private final AtomicLong pendingEvents = new AtomicLong();
+	private final AtomicLong rejectedRequests = new AtomicLong();
+	private volatile long maxPendingEvents;
+	private volatile double maxQueuesFillRatio;
+	private final int retryAfterSeconds;
+
+	@Autowired
+	private TimbermillService timbermillService;
+
+	public IngestionGate(@Value("${MAX_PENDING_EVENTS:2000000}") long maxPendingEvents,
+						 @Value("${MAX_QUEUES_FILL_RATIO:0.9}") double maxQueuesFillRatio,
+						 @Value("${RETRY_AFTER_SECONDS:5}") int retryAfterSeconds) {
+		this.maxPendingEvents = maxPendingEvents;
+		this.maxQueuesFillRatio = maxQueuesFillRatio;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * Cheap check that can run before the request body is read.
+	 */
+	boolean isSaturated() {
+		return pendingEvents.get() >= maxPendingEvents || timbermillService.getQueuesFillRatio() >= maxQueuesFillRatio;
+	}
+
+	/**
+	 * Reserves room for {@code eventsAmount} events, every successful call must be followed by {@link #release(int)}.
+	 */
+	boolean tryAcquire(int eventsAmount) {
+		if (timbermillService.getQueuesFillRatio() >= maxQueuesFillRatio) {
+			return false;
+		}
+		while (true) {
+			long current = pendingEvents.get();
+			// A single batch larger than the whole budget is still admitted when nothing else is pending
+			if (current > 0 && current + eventsAmount > maxPendingEvents) {
+				return false;
+			}
+			if (pendingEvents.compareAndSet(current, current + eventsAmount)) {
+				PENDING_EVENTS_GAUGE.withoutTags().update(current + eventsAmount);
+				return true;
+			}
+		}
+	}
+
+	void release(int eventsAmount) {
+		PENDING_EVENTS_GAUGE.withoutTags().update(pendingEvents.addAndGet(-eventsAmount));
+	}
+
+	void reject(int eventsAmount) {
+		long rejected = rejectedRequests.incrementAndGet();
+		REJECTED_REQUESTS_COUNTER.withoutTags().increment();
+		if (eventsAmount > 0) {
+			REJECTED_EVENTS_COUNTER.withoutTags().increment(eventsAmount);
+		}
+		if (rejected % 1000 == 1) {
+			LOG.warn("Ingestion is saturated, rejected {} requests so far. Pending events: {}, queues fill ratio: {}",
+					rejected, pendingEvents.get(), timbermillService.getQueuesFillRatio());
+		}
+	}
+
+	void recordAdmissionLatency(long nanos) {
+		ADMISSION_LATENCY_TIMER.withoutTags().record(nanos);
+	}
+
+	long getPendingEvents() {
+		return pendingEvents.get();
+	}
+
+	long getRejectedRequests() {
+		return rejectedRequests.get();
+	}
+
+	long getMaxPendingEvents() {
+		return maxPendingEvents;
+	}
+
+	void setMaxPendingEvents(long maxPendingEvents) {
+		this.maxPendingEvents = maxPendingEvents;
+	}
+
+	double getMaxQueuesFillRatio() {
+		return maxQueuesFillRatio;
+	}
+
+	void setMaxQueuesFillRatio(double maxQueuesFillRatio) {
+		this.maxQueuesFillRatio = maxQueuesFillRatio;
+	}
+
+	int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
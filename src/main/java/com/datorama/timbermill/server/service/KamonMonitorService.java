@@ -6,15 +6,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import com.datorama.oss.timbermill.common.persistence.PersistenceHandler;
+
 import kamon.Kamon;
 
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
 /**
  * this is an optional reporting service that reports various metrics using kamon to datadog
  * it is off by default.
  * current reported metrics are:
  *   - input queue size
+ *   - overflowed queue size
+ *   - estimated bytes held by the queues
+ *   - receiving executor backlog
+ *   - persisted failed bulks and overflowed events lists amounts
+ * request size, parse, enqueue, drain and spill metrics are recorded as they happen, see {@link PipelineMetrics},
+ * and so are the sampled per stage latencies of {@link LifecycleTracer}.
  */
 @Service
 @ConditionalOnProperty(name = "KAMON.MONITORING.ENABLED", havingValue = "true")
@@ -23,12 +34,33 @@ public class KamonMonitorService {
 	private static final Logger LOG = LoggerFactory.getLogger(KamonMonitorService.class);
 	private static final long MONITOR_RATE_IN_MS = 20000;
 
+	private final TimbermillService timbermillService;
+	private final TimbermillController timbermillController;
+
 	@Autowired
-	public KamonMonitorService() {
+	public KamonMonitorService(TimbermillService timbermillService, TimbermillController timbermillController) {
+		this.timbermillService = timbermillService;
+		this.timbermillController = timbermillController;
 	}
 
 	@PostConstruct void init(){
 		LOG.info("Init KamonMonitorService, will report data every {} milliseconds",MONITOR_RATE_IN_MS);
 		Kamon.init();
 	}
+
+	@Scheduled(fixedRate = MONITOR_RATE_IN_MS)
+	void report() {
+		EVENTS_QUEUE_SIZE_GAUGE.withoutTags().update(timbermillService.getEventsQueueSize());
+		OVERFLOWED_QUEUE_SIZE_GAUGE.withoutTags().update(timbermillService.getOverflowedQueueSize());
+		long queuedBytes = timbermillService.getQueuedBytes();
+		if (queuedBytes >= 0) {
+			QUEUED_BYTES_GAUGE.withoutTags().update(queuedBytes);
+		}
+		RECEIVING_BACKLOG_GAUGE.withoutTags().update(timbermillController.getReceivingBacklog());
+		PersistenceHandler persistenceHandler = timbermillService.getPersistenceHandler();
+		if (persistenceHandler != null) {
+			PERSISTED_BULKS_GAUGE.withoutTags().update(persistenceHandler.failedBulksAmount());
+			PERSISTED_EVENTS_LISTS_GAUGE.withoutTags().update(persistenceHandler.overFlowedEventsListsAmount());
+		}
+	}
 }
@@ -0,0 +1,53 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exposes the {@link LifecycleTracer} under /actuator/lifecycle: the latency percentiles of every pipeline stage,
+ * and /actuator/lifecycle/{taskId} to trace a task's events on demand and read the stages they went through.
+ */
+@Component
+@Endpoint(id = "lifecycle")
+public class LifecycleEndpoint {
+
+	@Autowired
+	private LifecycleTracer lifecycleTracer;
+
+	@ReadOperation
+	public Map<String, Object> stages() {
+		Map<String, Object> stages = new LinkedHashMap<>();
+		stages.put("trackedEvents", lifecycleTracer.getTrackedEvents());
+		stages.put("stages", lifecycleTracer.summary());
+		return stages;
+	}
+
+	@DeleteOperation
+	public void reset() {
+		lifecycleTracer.reset();
+	}
+
+	@ReadOperation
+	public List<String> taskTimeline(@Selector String taskId) {
+		return lifecycleTracer.getTaskTimeline(taskId);
+	}
+
+	@WriteOperation
+	public void traceTask(@Selector String taskId) {
+		lifecycleTracer.traceTask(taskId);
+	}
+
+	@DeleteOperation
+	public void stopTracingTask(@Selector String taskId) {
+		lifecycleTracer.stopTracingTask(taskId);
+	}
+}
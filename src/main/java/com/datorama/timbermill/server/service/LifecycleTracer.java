@@ -0,0 +1,272 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
+/**
+ * Follows a sample of TRACING_SAMPLE_RATE of the events through the pipeline and records how long each one spent in
+ * every stage, into a lock-free HDR {@link Recorder} per stage and a Kamon timer tagged with the stage.
+ * Events are identified by their deduplication fingerprint, which survives the round trip through the persistence handler,
+ * and sampled by it, so every stage agrees on the sample without coordination.
+ * Specific task ids can also be traced on demand, every stage their events go through is then logged and kept in a timeline.
+ * Stamping a batch costs one map lookup per event while traces are in flight, and nothing otherwise.
+ */
+@Component
+public class LifecycleTracer {
+
+	static final String RECEIVED_NANOS_ATTRIBUTE = LifecycleTracer.class.getName() + ".receivedNanos";
+
+	private static final Logger LOG = LoggerFactory.getLogger(LifecycleTracer.class);
+	private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+	private static final long TRACE_TTL_NANOS = TimeUnit.MINUTES.toNanos(30);
+	private static final int SAMPLE_BITS = 24;
+	private static final int MAX_TIMELINE_ENTRIES = 1000;
+
+	enum Stage {
+		PARSE("parse"),
+		ADMISSION("admission"),
+		ENQUEUE("enqueue"),
+		QUEUE_WAIT("queue.wait"),
+		INDEX("index"),
+		OVERFLOW("overflow"),
+		PERSISTED("persisted"),
+		END_TO_END("end.to.end");
+
+		private final String tag;
+		private final kamon.metric.Timer kamonTimer;
+
+		Stage(String tag) {
+			this.tag = tag;
+			this.kamonTimer = LIFECYCLE_STAGE_TIMER.withTag("stage", tag);
+		}
+	}
+
+	private final long sampleThreshold;
+	private final int maxTracked;
+	private final Map<Long, Trace> traces = new ConcurrentHashMap<>();
+	private final Map<String, List<String>> tracedTasks = new ConcurrentHashMap<>();
+	private final Map<Stage, StageLatency> latencies = new EnumMap<>(Stage.class);
+
+	public LifecycleTracer(@Value("${TRACING_SAMPLE_RATE:0.001}") double sampleRate,
+						   @Value("${TRACING_MAX_TRACKED_EVENTS:100000}") int maxTracked) {
+		this.sampleThreshold = (long) (Math.max(0, Math.min(1, sampleRate)) * (1L << SAMPLE_BITS));
+		this.maxTracked = maxTracked;
+		for (Stage stage : Stage.values()) {
+			latencies.put(stage, new StageLatency(stage));
+		}
+	}
+
+	/**
+	 * Starts tracing the sampled events of a parsed batch.
+	 *
+	 * @param receivedNanos when the request carrying the batch arrived.
+	 */
+	void parsed(Collection<Event> events, long receivedNanos) {
+		if (sampleThreshold == 0 && tracedTasks.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Event event : events) {
+			long key = EventsDeduplicator.fingerprint(event);
+			boolean onDemand = event.getTaskId() != null && tracedTasks.containsKey(event.getTaskId());
+			if (!onDemand && (key >>> (Long.SIZE - SAMPLE_BITS)) >= sampleThreshold) {
+				continue;
+			}
+			if (traces.size() >= maxTracked && !onDemand && !evictExpired(now)) {
+				continue;
+			}
+			Trace trace = new Trace(receivedNanos, onDemand);
+			traces.put(key, trace);
+			advance(event, trace, Stage.PARSE, now);
+		}
+	}
+
+	/**
+	 * Records the time the traced events of the batch spent since their previous stage into {@code stage}.
+	 */
+	void stamp(Collection<? extends Event> events, Stage stage) {
+		stamp(events, stage, null);
+	}
+
+	/**
+	 * Same as {@link #stamp(Collection, Stage)}, also adding the traced events of the batch to {@code traced}.
+	 */
+	void stamp(Collection<? extends Event> events, Stage stage, Collection<Event> traced) {
+		if (traces.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Event event : events) {
+			Trace trace = traces.get(EventsDeduplicator.fingerprint(event));
+			if (trace != null) {
+				advance(event, trace, stage, now);
+				if (traced != null) {
+					traced.add(event);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends the traces of a batch that was sent to Elasticsearch.
+	 */
+	void indexed(Collection<? extends Event> events) {
+		if (traces.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Event event : events) {
+			Trace trace = traces.remove(EventsDeduplicator.fingerprint(event));
+			if (trace != null) {
+				advance(event, trace, Stage.INDEX, now);
+				latencies.get(Stage.END_TO_END).record(now - trace.receivedNanos);
+				if (trace.onDemand) {
+					timeline(event, "indexed " + millis(now - trace.receivedNanos) + " ms after it was received");
+				}
+			}
+		}
+	}
+
+	private void advance(Event event, Trace trace, Stage stage, long now) {
+		long elapsed = now - trace.lastNanos;
+		trace.lastNanos = now;
+		latencies.get(stage).record(elapsed);
+		if (trace.onDemand) {
+			timeline(event, stage.tag + " took " + millis(elapsed) + " ms");
+		}
+	}
+
+	private void timeline(Event event, String entry) {
+		List<String> timeline = tracedTasks.get(event.getTaskId());
+		if (timeline == null) {
+			return;
+		}
+		String line = event.getClass().getSimpleName() + " " + entry;
+		LOG.info("Traced task {}: {}", event.getTaskId(), line);
+		synchronized (timeline) {
+			if (timeline.size() < MAX_TIMELINE_ENTRIES) {
+				timeline.add(line);
+			}
+		}
+	}
+
+	private boolean evictExpired(long now) {
+		traces.values().removeIf(trace -> now - trace.receivedNanos > TRACE_TTL_NANOS);
+		return traces.size() < maxTracked;
+	}
+
+	/**
+	 * Traces every event of the task from now on, until {@link #stopTracingTask(String)}.
+	 */
+	void traceTask(String taskId) {
+		tracedTasks.putIfAbsent(taskId, new ArrayList<>());
+	}
+
+	/**
+	 * @return the stages the task's events went through, or null if the task is not traced.
+	 */
+	List<String> getTaskTimeline(String taskId) {
+		List<String> timeline = tracedTasks.get(taskId);
+		if (timeline == null) {
+			return null;
+		}
+		synchronized (timeline) {
+			return Collections.unmodifiableList(new ArrayList<>(timeline));
+		}
+	}
+
+	void stopTracingTask(String taskId) {
+		tracedTasks.remove(taskId);
+	}
+
+	/**
+	 * @return the latency percentiles of every stage in milliseconds, since the start or the last {@link #reset()}.
+	 */
+	synchronized Map<String, Map<String, Object>> summary() {
+		Map<String, Map<String, Object>> summary = new LinkedHashMap<>();
+		for (StageLatency latency : latencies.values()) {
+			Histogram histogram = latency.accumulate();
+			Map<String, Object> stageSummary = new LinkedHashMap<>();
+			stageSummary.put("count", histogram.getTotalCount());
+			stageSummary.put("p50", percentileMillis(histogram, 50));
+			stageSummary.put("p90", percentileMillis(histogram, 90));
+			stageSummary.put("p99", percentileMillis(histogram, 99));
+			stageSummary.put("p999", percentileMillis(histogram, 99.9));
+			stageSummary.put("max", histogram.getMaxValue() / 1000.0);
+			summary.put(latency.stage.tag, stageSummary);
+		}
+		return summary;
+	}
+
+	synchronized void reset() {
+		for (StageLatency latency : latencies.values()) {
+			latency.accumulate().reset();
+		}
+	}
+
+	int getTrackedEvents() {
+		return traces.size();
+	}
+
+	private static double percentileMillis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+	private static final class StageLatency {
+		private final Stage stage;
+		private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+		// Guarded by the tracer, accumulates the recorder's intervals for the actuator endpoint
+		private final Histogram cumulative = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+		private Histogram interval;
+
+		StageLatency(Stage stage) {
+			this.stage = stage;
+		}
+
+		void record(long nanos) {
+			recorder.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+			stage.kamonTimer.record(nanos);
+		}
+
+		Histogram accumulate() {
+			interval = recorder.getIntervalHistogram(interval);
+			cumulative.add(interval);
+			return cumulative;
+		}
+	}
+
+	private static final class Trace {
+		private final long receivedNanos;
+		private final boolean onDemand;
+		// Only advanced by the thread holding the event at its current stage
+		private volatile long lastNanos;
+
+		Trace(long receivedNanos, boolean onDemand) {
+			this.receivedNanos = receivedNanos;
+			this.onDemand = onDemand;
+			this.lastNanos = receivedNanos;
+		}
+	}
+}
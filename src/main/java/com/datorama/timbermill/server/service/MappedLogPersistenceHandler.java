@@ -0,0 +1,227 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datorama.oss.timbermill.common.persistence.DbBulkRequest;
+import com.datorama.oss.timbermill.common.persistence.PersistenceHandler;
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Persistence strategy keeping failed bulks and overflowed events in two {@link SegmentedMappedLog}s under the disk location.
+ * Writes are sequential appends to memory-mapped segments, so spilling and replaying run at page cache / disk speed
+ * instead of paying a database insert per list. Overflowed events are spilled in one batched append per call,
+ * and replayed records are gone for good once their segment is deleted.
+ */
+final class MappedLogPersistenceHandler extends PersistenceHandler {
+
+	static final String MMAP = "mmap";
+
+	private static final Logger LOG = LoggerFactory.getLogger(MappedLogPersistenceHandler.class);
+	private static final int EVENTS_PER_RECORD = 1000;
+	private static final int RECORDS_PER_SPILL = 100;
+
+	private final SegmentedMappedLog bulksLog;
+	private final SegmentedMappedLog eventsLog;
+	private final int maxFetchedBulks;
+	private final int maxFetchedEventsLists;
+	private final boolean createdSuccessfully;
+
+	MappedLogPersistenceHandler(int maxFetchedBulks, int maxFetchedEventsLists, String locationInDisk, int segmentBytes, boolean syncWrites) {
+		super(maxFetchedBulks, maxFetchedEventsLists);
+		this.maxFetchedBulks = maxFetchedBulks;
+		this.maxFetchedEventsLists = maxFetchedEventsLists;
+		Path directory = Paths.get(locationInDisk, MMAP);
+		SegmentedMappedLog bulks = null;
+		SegmentedMappedLog events = null;
+		try {
+			bulks = new SegmentedMappedLog(directory.resolve("bulks"), segmentBytes, syncWrites);
+			events = new SegmentedMappedLog(directory.resolve("events"), segmentBytes, syncWrites);
+		} catch (IOException e) {
+			LOG.error("Failed opening mapped persistence logs in {}", directory, e);
+		}
+		bulksLog = bulks;
+		eventsLog = events;
+		createdSuccessfully = bulks != null && events != null;
+	}
+
+	@Override
+	public List<DbBulkRequest> fetchAndDeleteFailedBulks() {
+		List<DbBulkRequest> bulks = new ArrayList<>();
+		synchronized (bulksLog) {
+			try {
+				for (byte[] record : bulksLog.poll(maxFetchedBulks)) {
+					bulks.add(decodeBulk(record));
+				}
+			} catch (IOException e) {
+				LOG.error("Failed fetching failed bulks from mapped log", e);
+			}
+		}
+		return bulks;
+	}
+
+	@Override
+	public List<Event> fetchAndDeleteOverflowedEvents() {
+		List<Event> events = new ArrayList<>();
+		synchronized (eventsLog) {
+			try {
+				for (byte[] record : eventsLog.poll(maxFetchedEventsLists)) {
+					events.addAll(EventsCodec.decode(record));
+				}
+			} catch (IOException e) {
+				LOG.error("Failed fetching overflowed events from mapped log", e);
+			}
+		}
+		return events;
+	}
+
+	@Override
+	public Future<?> persistBulkRequest(DbBulkRequest dbBulkRequest, int bulkNum) {
+		try {
+			byte[] record = encodeBulk(dbBulkRequest);
+			synchronized (bulksLog) {
+				bulksLog.append(Collections.singletonList(record));
+			}
+			LOG.info("Bulk #{} persisted to mapped log", bulkNum);
+		} catch (IOException e) {
+			LOG.error("Bulk #{} failed persisting to mapped log", bulkNum, e);
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public void persistEvents(ArrayList<Event> events) {
+		try {
+			byte[] record = EventsCodec.encode(events);
+			synchronized (eventsLog) {
+				eventsLog.append(Collections.singletonList(record));
+			}
+		} catch (IOException e) {
+			LOG.error("Failed persisting {} overflowed events to mapped log", events.size(), e);
+		}
+	}
+
+	/**
+	 * Drains the overflowed queue into lists of {@value #EVENTS_PER_RECORD} events and appends them in batches,
+	 * instead of persisting one list per call.
+	 */
+	@Override
+	public void spillOverflownEvents(BlockingQueue<Event> overflowedQueue) {
+		List<byte[]> records = new ArrayList<>(RECORDS_PER_SPILL);
+		List<Event> events = new ArrayList<>(EVENTS_PER_RECORD);
+		long spilled = 0;
+		while (overflowedQueue.drainTo(events, EVENTS_PER_RECORD) > 0) {
+			try {
+				records.add(EventsCodec.encode(events));
+				spilled += events.size();
+			} catch (IOException e) {
+				LOG.error("Failed encoding {} overflowed events, dropping them", events.size(), e);
+			}
+			events.clear();
+			if (records.size() == RECORDS_PER_SPILL) {
+				appendEvents(records);
+			}
+		}
+		appendEvents(records);
+		if (spilled > 0) {
+			LOG.info("Spilled {} overflowed events to mapped log", spilled);
+		}
+	}
+
+	@Override
+	public boolean hasFailedBulks() {
+		return failedBulksAmount() > 0;
+	}
+
+	@Override
+	public boolean isCreatedSuccessfully() {
+		return createdSuccessfully;
+	}
+
+	@Override
+	public long failedBulksAmount() {
+		synchronized (bulksLog) {
+			return bulksLog.size();
+		}
+	}
+
+	@Override
+	public long overFlowedEventsListsAmount() {
+		synchronized (eventsLog) {
+			return eventsLog.size();
+		}
+	}
+
+	@Override
+	public void reset() {
+		try {
+			synchronized (bulksLog) {
+				bulksLog.reset();
+			}
+			synchronized (eventsLog) {
+				eventsLog.reset();
+			}
+		} catch (IOException e) {
+			LOG.error("Failed resetting mapped persistence logs", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			synchronized (bulksLog) {
+				bulksLog.close();
+			}
+			synchronized (eventsLog) {
+				eventsLog.close();
+			}
+		} catch (IOException e) {
+			LOG.error("Failed closing mapped persistence logs", e);
+		}
+	}
+
+	private void appendEvents(List<byte[]> records) {
+		if (records.isEmpty()) {
+			return;
+		}
+		try {
+			synchronized (eventsLog) {
+				eventsLog.append(records);
+			}
+		} catch (IOException e) {
+			LOG.error("Failed appending {} overflowed events lists to mapped log", records.size(), e);
+		}
+		records.clear();
+	}
+
+	private static byte[] encodeBulk(DbBulkRequest dbBulkRequest) throws IOException {
+		try (BytesStreamOutput out = new BytesStreamOutput()) {
+			out.writeVInt(dbBulkRequest.getTimesFetched());
+			dbBulkRequest.getRequest().writeTo(out);
+			return BytesReference.toBytes(out.bytes());
+		}
+	}
+
+	private static DbBulkRequest decodeBulk(byte[] record) throws IOException {
+		try (StreamInput in = StreamInput.wrap(record)) {
+			int timesFetched = in.readVInt();
+			DbBulkRequest dbBulkRequest = new DbBulkRequest(new BulkRequest(in));
+			dbBulkRequest.setTimesFetched(timesFetched);
+			return dbBulkRequest;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Bounded event queue that keeps its events Smile encoded in direct memory segments instead of as objects on the heap.
+ * Producers encode outside the lock and only copy the bytes into the tail segment under it, and consumers copy the
+ * bytes out under the lock and decode outside it, so a drained batch is decoded by the draining thread.
+ * A backlog of millions of events then costs direct memory instead of old generation, and no GC work.
+ * Consumed segments are recycled through a small pool, so a steady state allocates no new direct memory.
+ */
+final class OffHeapEventQueue extends AbstractQueue<Event> implements BlockingQueue<Event> {
+
+	private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+	private static final int MAX_POOLED_SEGMENTS = 16;
+	private static final int RECORD_HEADER_BYTES = 4;
+
+	private final int capacity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	// Written at the last segment's position, read from the first segment through readView
+	private final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>();
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+	private ByteBuffer readView;
+	private int count;
+
+	OffHeapEventQueue(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	@Override
+	public boolean offer(Event event) {
+		byte[] record = encode(event);
+		lock.lock();
+		try {
+			if (count == capacity) {
+				return false;
+			}
+			append(record);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Event event, long timeout, TimeUnit unit) throws InterruptedException {
+		byte[] record = encode(event);
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			append(record);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Event event) throws InterruptedException {
+		byte[] record = encode(event);
+		lock.lockInterruptibly();
+		try {
+			while (count == capacity) {
+				notFull.await();
+			}
+			append(record);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Event poll() {
+		byte[] record;
+		lock.lock();
+		try {
+			if (count == 0) {
+				return null;
+			}
+			record = takeRecord();
+		} finally {
+			lock.unlock();
+		}
+		return decode(record);
+	}
+
+	@Override
+	public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		byte[] record;
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			record = takeRecord();
+		} finally {
+			lock.unlock();
+		}
+		return decode(record);
+	}
+
+	@Override
+	public Event take() throws InterruptedException {
+		byte[] record;
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			record = takeRecord();
+		} finally {
+			lock.unlock();
+		}
+		return decode(record);
+	}
+
+	@Override
+	public Event peek() {
+		byte[] record;
+		lock.lock();
+		try {
+			if (count == 0) {
+				return null;
+			}
+			record = readRecord(firstRecordView());
+		} finally {
+			lock.unlock();
+		}
+		return decode(record);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		List<byte[]> records;
+		lock.lock();
+		try {
+			int amount = Math.min(count, maxElements);
+			if (amount <= 0) {
+				return 0;
+			}
+			records = new ArrayList<>(amount);
+			for (int i = 0; i < amount; i++) {
+				records.add(takeRecord());
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (byte[] record : records) {
+			c.add(decode(record));
+		}
+		return records.size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			while (!segments.isEmpty()) {
+				recycle(segments.pollFirst());
+			}
+			readView = null;
+			count = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	/**
+	 * Decodes a snapshot of the whole queue, meant for inspection only.
+	 */
+	@Override
+	public Iterator<Event> iterator() {
+		List<byte[]> records = new ArrayList<>();
+		lock.lock();
+		try {
+			if (count > 0) {
+				boolean first = true;
+				for (ByteBuffer segment : segments) {
+					ByteBuffer view = first ? readView.duplicate() : readBuffer(segment);
+					first = false;
+					while (view.position() < segment.position()) {
+						records.add(readRecord(view));
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		List<Event> events = new ArrayList<>(records.size());
+		for (byte[] record : records) {
+			events.add(decode(record));
+		}
+		return Collections.unmodifiableList(events).iterator();
+	}
+
+	private void append(byte[] record) {
+		int needed = RECORD_HEADER_BYTES + record.length;
+		ByteBuffer tail = segments.peekLast();
+		if (tail == null || tail.remaining() < needed) {
+			tail = newSegment(needed);
+			segments.addLast(tail);
+			if (readView == null) {
+				readView = readBuffer(tail);
+			}
+		}
+		tail.putInt(record.length).put(record);
+		count++;
+		notEmpty.signal();
+	}
+
+	private byte[] takeRecord() {
+		skipConsumedSegment();
+		byte[] record = readRecord(readView);
+		count--;
+		ByteBuffer head = segments.peekFirst();
+		if (count == 0 && segments.size() == 1) {
+			// Reuse the only segment from its start instead of moving on to a fresh one
+			head.clear();
+			readView.clear();
+		}
+		notFull.signal();
+		return record;
+	}
+
+	private void skipConsumedSegment() {
+		while (readView.position() >= segments.peekFirst().position() && segments.size() > 1) {
+			recycle(segments.pollFirst());
+			readView = readBuffer(segments.peekFirst());
+		}
+	}
+
+	private ByteBuffer firstRecordView() {
+		ByteBuffer view = readView.duplicate();
+		Iterator<ByteBuffer> iterator = segments.iterator();
+		ByteBuffer segment = iterator.next();
+		while (view.position() >= segment.position() && iterator.hasNext()) {
+			segment = iterator.next();
+			view = readBuffer(segment);
+		}
+		return view;
+	}
+
+	private ByteBuffer newSegment(int needed) {
+		if (needed <= SEGMENT_BYTES && !pool.isEmpty()) {
+			return pool.pollFirst();
+		}
+		return ByteBuffer.allocateDirect(Math.max(SEGMENT_BYTES, needed));
+	}
+
+	private void recycle(ByteBuffer segment) {
+		if (segment.capacity() == SEGMENT_BYTES && pool.size() < MAX_POOLED_SEGMENTS) {
+			segment.clear();
+			pool.addLast(segment);
+		}
+	}
+
+	private static ByteBuffer readBuffer(ByteBuffer segment) {
+		ByteBuffer view = segment.duplicate();
+		view.clear();
+		return view;
+	}
+
+	private static byte[] readRecord(ByteBuffer view) {
+		byte[] record = new byte[view.getInt()];
+		view.get(record);
+		return record;
+	}
+
+	private static byte[] encode(Event event) {
+		if (event == null) {
+			throw new NullPointerException();
+		}
+		try {
+			return EventsCodec.encode(event);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed encoding event " + event.getTaskId(), e);
+		}
+	}
+
+	private static Event decode(byte[] record) {
+		try {
+			return EventsCodec.decodeEvent(record);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed decoding queued event", e);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Facade over several event queues that routes every event by a hash of its task id,
+ * so all the events of a task land in the same partition and keep their order.
+ * Producers (the REST endpoints and the persistence crons) see one {@link BlockingQueue},
+ * each indexing partition drains its own queue through {@link #getPartition(int)}.
+ */
+final class PartitionedEventQueue extends AbstractQueue<Event> implements BlockingQueue<Event> {
+
+	private final BlockingQueue<Event>[] partitions;
+	private int drainStart;
+
+	@SuppressWarnings("unchecked")
+	PartitionedEventQueue(int partitionsAmount, IntFunction<BlockingQueue<Event>> partitionFactory) {
+		if (partitionsAmount <= 0) {
+			throw new IllegalArgumentException("Partitions amount must be positive, got " + partitionsAmount);
+		}
+		partitions = new BlockingQueue[partitionsAmount];
+		for (int i = 0; i < partitionsAmount; i++) {
+			partitions[i] = partitionFactory.apply(i);
+		}
+	}
+
+	static int partitionOf(Event event, int partitionsAmount) {
+		String taskId = event.getTaskId();
+		if (taskId == null || partitionsAmount == 1) {
+			return 0;
+		}
+		int h = taskId.hashCode();
+		h ^= (h >>> 16);
+		return Math.floorMod(h, partitionsAmount);
+	}
+
+	int getPartitionsAmount() {
+		return partitions.length;
+	}
+
+	BlockingQueue<Event> getPartition(int partition) {
+		return partitions[partition];
+	}
+
+	private BlockingQueue<Event> route(Event event) {
+		return partitions[partitionOf(event, partitions.length)];
+	}
+
+	@Override
+	public boolean offer(Event event) {
+		return route(event).offer(event);
+	}
+
+	@Override
+	public void put(Event event) throws InterruptedException {
+		route(event).put(event);
+	}
+
+	@Override
+	public boolean offer(Event event, long timeout, TimeUnit unit) throws InterruptedException {
+		return route(event).offer(event, timeout, unit);
+	}
+
+	@Override
+	public Event poll() {
+		for (int i = 0; i < partitions.length; i++) {
+			Event event = partitions[nextDrainStart()].poll();
+			if (event != null) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Event take() throws InterruptedException {
+		Event event;
+		while ((event = poll(1, TimeUnit.SECONDS)) == null) {
+			// keep waiting
+		}
+		return event;
+	}
+
+	@Override
+	public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Event event;
+		while ((event = poll()) == null) {
+			if (System.nanoTime() - deadline >= 0) {
+				return null;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			Thread.sleep(1);
+		}
+		return event;
+	}
+
+	@Override
+	public Event peek() {
+		for (BlockingQueue<Event> partition : partitions) {
+			Event event = partition.peek();
+			if (event != null) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c, int maxElements) {
+		int drained = 0;
+		for (int i = 0; i < partitions.length && drained < maxElements; i++) {
+			drained += partitions[nextDrainStart()].drainTo(c, maxElements - drained);
+		}
+		return drained;
+	}
+
+	private int nextDrainStart() {
+		int partition = drainStart;
+		drainStart = (partition + 1) % partitions.length;
+		return partition;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (BlockingQueue<Event> partition : partitions) {
+			size += partition.size();
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (BlockingQueue<Event> partition : partitions) {
+			if (!partition.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		long remaining = 0;
+		for (BlockingQueue<Event> partition : partitions) {
+			remaining += partition.remainingCapacity();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+
+	@Override
+	public Iterator<Event> iterator() {
+		List<Event> snapshot = new ArrayList<>();
+		for (BlockingQueue<Event> partition : partitions) {
+			snapshot.addAll(partition);
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+}
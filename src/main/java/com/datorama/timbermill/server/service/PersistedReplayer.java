@@ -0,0 +1,121 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datorama.oss.timbermill.ElasticsearchClient;
+import com.datorama.oss.timbermill.common.persistence.PersistenceHandler;
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Continuously replays what the persistence handler holds, in place of the fixed persistent fetch crons.
+ * Failed bulks are retried round after round with an additive-decrease, multiplicative-increase pause between rounds:
+ * a round that failed or took longer than the target latency doubles the pause, a healthy one shortens it by a step,
+ * so recovery speeds up to what the cluster sustains and backs off as soon as it struggles.
+ * Overflowed events are only fetched while the in-memory queues are below the fill ratio, so replay never
+ * takes the room live traffic needs.
+ */
+final class PersistedReplayer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PersistedReplayer.class);
+	private static final long PAUSE_STEP_MILLIS = 100;
+	private static final long MIN_BACKOFF_MILLIS = 500;
+	private static final long IDLE_MILLIS = 1000;
+
+	private final PersistenceHandler persistenceHandler;
+	private final ElasticsearchClient es;
+	private final Consumer<List<Event>> eventsSink;
+	private final DoubleSupplier queuesFillRatio;
+	private final long targetBulkLatencyMillis;
+	private final double maxQueuesFillRatio;
+	private final long maxPauseMillis;
+	private final Thread replayThread;
+	private volatile boolean running = true;
+	private volatile long bulksPauseMillis;
+
+	PersistedReplayer(PersistenceHandler persistenceHandler, ElasticsearchClient es, Consumer<List<Event>> eventsSink, DoubleSupplier queuesFillRatio,
+					  long targetBulkLatencyMillis, double maxQueuesFillRatio, long maxPauseMillis) {
+		this.persistenceHandler = persistenceHandler;
+		this.es = es;
+		this.eventsSink = eventsSink;
+		this.queuesFillRatio = queuesFillRatio;
+		this.targetBulkLatencyMillis = targetBulkLatencyMillis;
+		this.maxQueuesFillRatio = maxQueuesFillRatio;
+		this.maxPauseMillis = maxPauseMillis;
+		this.replayThread = new Thread(this::run, "timbermill-replayer");
+		this.replayThread.setDaemon(true);
+	}
+
+	void start() {
+		replayThread.start();
+	}
+
+	long getBulksPauseMillis() {
+		return bulksPauseMillis;
+	}
+
+	private void run() {
+		LOG.info("Continuously replaying persisted bulks and events");
+		long nextBulksRound = 0;
+		while (running) {
+			boolean replayed = false;
+			try {
+				long now = System.currentTimeMillis();
+				if (now >= nextBulksRound && persistenceHandler.hasFailedBulks()) {
+					replayBulks();
+					nextBulksRound = System.currentTimeMillis() + bulksPauseMillis;
+					replayed = true;
+				}
+				if (queuesFillRatio.getAsDouble() < maxQueuesFillRatio && persistenceHandler.overFlowedEventsListsAmount() > 0) {
+					replayed |= replayEvents();
+				}
+			} catch (RuntimeException e) {
+				LOG.error("Failed replaying persisted data", e);
+			}
+			if (!replayed) {
+				long idleMillis = Math.max(1, Math.min(IDLE_MILLIS, nextBulksRound - System.currentTimeMillis()));
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(idleMillis));
+			}
+		}
+	}
+
+	private void replayBulks() {
+		int before = persistenceHandler.failedBulksAmount();
+		long start = System.nanoTime();
+		// False when a retried bulk failed again and went back to the persistence handler
+		boolean succeeded = es.retryFailedRequestsFromDisk();
+		long latencyNanos = System.nanoTime() - start;
+		PipelineMetrics.recordReplayedBulks(Math.max(0, before - persistenceHandler.failedBulksAmount()), latencyNanos);
+		if (!succeeded || TimeUnit.NANOSECONDS.toMillis(latencyNanos) > targetBulkLatencyMillis) {
+			bulksPauseMillis = Math.min(maxPauseMillis, Math.max(MIN_BACKOFF_MILLIS, bulksPauseMillis * 2));
+			LOG.debug("Replaying persisted bulks backed off to a {} ms pause", bulksPauseMillis);
+		} else {
+			bulksPauseMillis = Math.max(0, bulksPauseMillis - PAUSE_STEP_MILLIS);
+		}
+	}
+
+	private boolean replayEvents() {
+		List<Event> events = persistenceHandler.fetchAndDeleteOverflowedEvents();
+		if (events.isEmpty()) {
+			return false;
+		}
+		eventsSink.accept(events);
+		PipelineMetrics.recordReplayedEvents(events.size());
+		return true;
+	}
+
+	void close() {
+		running = false;
+		try {
+			replayThread.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
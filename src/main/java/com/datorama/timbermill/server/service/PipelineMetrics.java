@@ -0,0 +1,103 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import static com.datorama.timbermill.server.service.ServerKamonConstants.*;
+
+/**
+ * Records ingestion pipeline metrics to both Kamon and Micrometer, the latter being what the Spring actuator exposes
+ * under /actuator/metrics. Instruments are resolved once per endpoint, so recording allocates nothing.
+ * Queue gauges are registered by the components owning the queues and sampled lazily.
+ */
+final class PipelineMetrics {
+
+	static final MeterRegistry REGISTRY = Metrics.globalRegistry;
+
+	private static final DistributionSummary DRAIN_BATCH_SIZE = DistributionSummary.builder("timbermill.drain.batch.size").register(REGISTRY);
+	private static final Timer DRAIN_LOOP = Timer.builder("timbermill.drain.loop").register(REGISTRY);
+	private static final DistributionSummary SPILLED_EVENTS = DistributionSummary.builder("timbermill.spilled.events").register(REGISTRY);
+	private static final Counter COALESCED_EVENTS = Counter.builder("timbermill.coalesced.events").register(REGISTRY);
+	private static final Counter REPLAYED_BULKS = Counter.builder("timbermill.replayed.bulks").register(REGISTRY);
+	private static final Counter REPLAYED_EVENTS = Counter.builder("timbermill.replayed.events").register(REGISTRY);
+	private static final Timer REPLAY_BULKS_ROUND = Timer.builder("timbermill.replay.bulks.round").register(REGISTRY);
+
+	private PipelineMetrics() {
+	}
+
+	enum Endpoint {
+		EVENTS("/events"),
+		EVENTS_V2("/events/v2"),
+		EVENTS_V2_STREAM("/events/v2/stream"),
+		EVENTS_V3("/events/v3"),
+		INTERNAL_EVENTS(ClusterRouter.INTERNAL_EVENTS_PATH);
+
+		private final kamon.metric.Histogram kamonRequestSize;
+		private final kamon.metric.Timer kamonParse;
+		private final kamon.metric.Timer kamonEnqueue;
+		private final DistributionSummary requestSize;
+		private final Timer parse;
+		private final Timer enqueue;
+
+		Endpoint(String path) {
+			kamonRequestSize = REQUEST_SIZE_HISTOGRAM.withTag("endpoint", path);
+			kamonParse = REQUEST_PARSE_TIMER.withTag("endpoint", path);
+			kamonEnqueue = REQUEST_ENQUEUE_TIMER.withTag("endpoint", path);
+			requestSize = DistributionSummary.builder("timbermill.request.size").baseUnit("bytes").tag("endpoint", path).register(REGISTRY);
+			parse = Timer.builder("timbermill.request.parse").tag("endpoint", path).register(REGISTRY);
+			enqueue = Timer.builder("timbermill.request.enqueue").tag("endpoint", path).register(REGISTRY);
+		}
+
+		/**
+		 * @param bytes decoded (ungzipped) body bytes consumed by the parser
+		 */
+		void recordParsed(long bytes, long parseNanos) {
+			kamonRequestSize.record(bytes);
+			requestSize.record(bytes);
+			kamonParse.record(parseNanos);
+			parse.record(parseNanos, TimeUnit.NANOSECONDS);
+		}
+
+		void recordEnqueued(long enqueueNanos) {
+			kamonEnqueue.record(enqueueNanos);
+			enqueue.record(enqueueNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	static void recordDrainBatch(int size) {
+		DRAIN_BATCH_SIZE_HISTOGRAM.withoutTags().record(size);
+		DRAIN_BATCH_SIZE.record(size);
+	}
+
+	static void recordDrainLoop(long nanos) {
+		DRAIN_LOOP_TIMER.withoutTags().record(nanos);
+		DRAIN_LOOP.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	static void recordSpilled(int events) {
+		SPILLED_EVENTS_COUNTER.withoutTags().increment(events);
+		SPILLED_EVENTS.record(events);
+	}
+
+	static void recordCoalesced(int events) {
+		COALESCED_EVENTS_COUNTER.withoutTags().increment(events);
+		COALESCED_EVENTS.increment(events);
+	}
+
+	static void recordReplayedBulks(int bulks, long roundNanos) {
+		REPLAYED_BULKS_COUNTER.withoutTags().increment(bulks);
+		REPLAYED_BULKS.increment(bulks);
+		REPLAY_BULKS_ROUND_TIMER.withoutTags().record(roundNanos);
+		REPLAY_BULKS_ROUND.record(roundNanos, TimeUnit.NANOSECONDS);
+	}
+
+	static void recordReplayedEvents(int events) {
+		REPLAYED_EVENTS_COUNTER.withoutTags().increment(events);
+		REPLAYED_EVENTS.increment(events);
+	}
+}
@@ -0,0 +1,242 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Streaming gzip decoder that borrows its {@link Inflater} and input buffer from a shared pool instead of
+ * allocating them per request like {@link java.util.zip.GZIPInputStream} does.
+ * Supports concatenated gzip members and verifies the CRC32/ISIZE trailer of each member.
+ * An empty source is treated as an empty body.
+ */
+final class PooledGzipInputStream extends InputStream {
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int POOL_SIZE = 64;
+	private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+	private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+	private final InputStream source;
+	private final CRC32 crc = new CRC32();
+	private final byte[] singleByte = new byte[1];
+	private Inflater inflater;
+	private byte[] inBuf;
+	private int inPos;
+	private int inLimit;
+	private boolean headerRead;
+	private boolean eof;
+	private boolean closed;
+	private long inflateNanos;
+
+	PooledGzipInputStream(InputStream source) {
+		this.source = source;
+		Inflater pooledInflater = INFLATERS.poll();
+		this.inflater = pooledInflater != null ? pooledInflater : new Inflater(true);
+		byte[] pooledBuffer = BUFFERS.poll();
+		this.inBuf = pooledBuffer != null ? pooledBuffer : new byte[BUFFER_SIZE];
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (!eof) {
+			if (!headerRead) {
+				if (!readHeader()) {
+					eof = true;
+					break;
+				}
+				headerRead = true;
+			}
+			int n = inflate(b, off, len);
+			if (n > 0) {
+				crc.update(b, off, n);
+				return n;
+			}
+			if (inflater.finished()) {
+				readTrailer();
+				headerRead = false;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		return eof ? 0 : 1;
+	}
+
+	boolean isFinished() {
+		return eof;
+	}
+
+	/**
+	 * @return nanoseconds spent inside the inflater so far, excluding time blocked on the source stream.
+	 */
+	long getInflateNanos() {
+		return inflateNanos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		eof = true;
+		inflater.reset();
+		if (!INFLATERS.offer(inflater)) {
+			inflater.end();
+		}
+		BUFFERS.offer(inBuf);
+		inflater = null;
+		inBuf = null;
+		source.close();
+	}
+
+	private int inflate(byte[] b, int off, int len) throws IOException {
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				int n = inflater.inflate(b, off, len);
+				inflateNanos += System.nanoTime() - start;
+				if (n > 0 || inflater.finished()) {
+					if (inflater.finished()) {
+						inPos = inLimit - inflater.getRemaining();
+					}
+					return n;
+				}
+				if (inflater.needsDictionary()) {
+					throw new ZipException("Unexpected preset dictionary in gzip stream");
+				}
+				if (inflater.needsInput()) {
+					if (inPos == inLimit && fill() == -1) {
+						throw new EOFException("Unexpected end of gzip stream");
+					}
+					inflater.setInput(inBuf, inPos, inLimit - inPos);
+					inPos = inLimit;
+				}
+			}
+		} catch (DataFormatException e) {
+			String message = e.getMessage();
+			throw new ZipException(message != null ? message : "Invalid gzip data format");
+		}
+	}
+
+	/**
+	 * @return false if the source ended cleanly before a new member started.
+	 */
+	private boolean readHeader() throws IOException {
+		int first = readUByte();
+		if (first == -1) {
+			return false;
+		}
+		crc.reset();
+		int magic = first | (readRequiredUByte() << 8);
+		if (magic != GZIP_MAGIC) {
+			throw new ZipException("Not in gzip format");
+		}
+		if (readRequiredUByte() != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+		int flags = readRequiredUByte();
+		skipBytes(6);
+		if ((flags & FEXTRA) == FEXTRA) {
+			skipBytes(readRequiredUByte() | (readRequiredUByte() << 8));
+		}
+		if ((flags & FNAME) == FNAME) {
+			skipZeroTerminated();
+		}
+		if ((flags & FCOMMENT) == FCOMMENT) {
+			skipZeroTerminated();
+		}
+		if ((flags & FHCRC) == FHCRC) {
+			skipBytes(2);
+		}
+		inflater.reset();
+		return true;
+	}
+
+	private void readTrailer() throws IOException {
+		long expectedCrc = readUInt();
+		long expectedSize = readUInt();
+		if (expectedCrc != crc.getValue() || expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+			throw new ZipException("Corrupt gzip trailer");
+		}
+	}
+
+	private long readUInt() throws IOException {
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			value |= ((long) readRequiredUByte()) << (8 * i);
+		}
+		return value;
+	}
+
+	private void skipZeroTerminated() throws IOException {
+		while (readRequiredUByte() != 0) {
+			// skip
+		}
+	}
+
+	private void skipBytes(int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			readRequiredUByte();
+		}
+	}
+
+	private int readRequiredUByte() throws IOException {
+		int b = readUByte();
+		if (b == -1) {
+			throw new EOFException("Unexpected end of gzip stream");
+		}
+		return b;
+	}
+
+	private int readUByte() throws IOException {
+		if (inPos == inLimit && fill() == -1) {
+			return -1;
+		}
+		return inBuf[inPos++] & 0xff;
+	}
+
+	private int fill() throws IOException {
+		int n;
+		do {
+			n = source.read(inBuf, 0, inBuf.length);
+		} while (n == 0);
+		if (n > 0) {
+			inPos = 0;
+			inLimit = n;
+		}
+		return n;
+	}
+}
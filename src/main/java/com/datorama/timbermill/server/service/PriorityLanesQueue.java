@@ -0,0 +1,255 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+import com.datorama.oss.timbermill.unit.ErrorEvent;
+import com.datorama.oss.timbermill.unit.Event;
+import com.datorama.oss.timbermill.unit.SpotEvent;
+import com.datorama.oss.timbermill.unit.StartEvent;
+import com.datorama.oss.timbermill.unit.SuccessEvent;
+
+/**
+ * Events queue split into priority lanes: closing events (success and error) first, then start and spot events,
+ * then info events, so under a backlog tasks stop showing as unterminated long before their info updates are indexed.
+ * A task is pinned to the lane of its first queued event until all its queued events were drained,
+ * so later events of the task never overtake earlier ones.
+ * {@link #drainTo(Collection, int)} splits a batch between the non empty lanes by their weights and fills what is left
+ * in priority order, so lower lanes keep moving under a flood of closing events.
+ * The capacity bounds the lanes together, the lanes themselves are expected to be unbounded.
+ */
+final class PriorityLanesQueue extends AbstractQueue<Event> implements BlockingQueue<Event> {
+
+	static final int CLOSING_LANE = 0;
+	static final int START_LANE = 1;
+	static final int INFO_LANE = 2;
+	static final int LANES = 3;
+
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final BlockingQueue<Event>[] lanes;
+	private final int[] weights;
+	private final int capacity;
+	private final AtomicInteger size = new AtomicInteger();
+	private final Map<String, Pin> pins = new ConcurrentHashMap<>();
+
+	@SuppressWarnings("unchecked")
+	PriorityLanesQueue(int capacity, int[] weights, IntFunction<BlockingQueue<Event>> laneFactory) {
+		if (weights.length != LANES) {
+			throw new IllegalArgumentException("Expected " + LANES + " lane weights, got " + weights.length);
+		}
+		this.capacity = capacity;
+		this.weights = weights.clone();
+		this.lanes = new BlockingQueue[LANES];
+		for (int i = 0; i < LANES; i++) {
+			lanes[i] = laneFactory.apply(i);
+		}
+	}
+
+	static int laneOf(Event event) {
+		if (event instanceof SuccessEvent || event instanceof ErrorEvent) {
+			return CLOSING_LANE;
+		}
+		if (event instanceof StartEvent) {
+			return START_LANE;
+		}
+		// Spot events are whole tasks on their own, info events only update existing ones
+		return event instanceof SpotEvent ? START_LANE : INFO_LANE;
+	}
+
+	@Override
+	public boolean offer(Event event) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		int lane = pin(event);
+		if (!lanes[lane].offer(event)) {
+			unpin(event);
+			size.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean offer(Event event, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(event)) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			park();
+		}
+		return true;
+	}
+
+	@Override
+	public void put(Event event) throws InterruptedException {
+		while (!offer(event)) {
+			park();
+		}
+	}
+
+	@Override
+	public Event poll() {
+		for (BlockingQueue<Event> lane : lanes) {
+			Event event = lane.poll();
+			if (event != null) {
+				return drained(event);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Event event;
+		while ((event = poll()) == null) {
+			if (System.nanoTime() >= deadline) {
+				return null;
+			}
+			park();
+		}
+		return event;
+	}
+
+	@Override
+	public Event take() throws InterruptedException {
+		Event event;
+		while ((event = poll()) == null) {
+			park();
+		}
+		return event;
+	}
+
+	@Override
+	public Event peek() {
+		for (BlockingQueue<Event> lane : lanes) {
+			Event event = lane.peek();
+			if (event != null) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		List<Event> drained = new ArrayList<>(Math.min(maxElements, Math.max(1, size.get())));
+		int activeWeight = 0;
+		for (int i = 0; i < LANES; i++) {
+			if (!lanes[i].isEmpty()) {
+				activeWeight += Math.max(1, weights[i]);
+			}
+		}
+		if (activeWeight == 0) {
+			return 0;
+		}
+		for (int i = 0; i < LANES && drained.size() < maxElements; i++) {
+			if (!lanes[i].isEmpty()) {
+				long share = Math.max(1, (long) maxElements * Math.max(1, weights[i]) / activeWeight);
+				lanes[i].drainTo(drained, (int) Math.min(share, maxElements - drained.size()));
+			}
+		}
+		for (int i = 0; i < LANES && drained.size() < maxElements; i++) {
+			lanes[i].drainTo(drained, maxElements - drained.size());
+		}
+		for (Event event : drained) {
+			drained(event);
+		}
+		c.addAll(drained);
+		return drained.size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super Event> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int size() {
+		return Math.max(0, size.get());
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Math.max(0, capacity - size.get());
+	}
+
+	/**
+	 * Snapshot of the lanes in priority order, meant for inspection only.
+	 */
+	@Override
+	public Iterator<Event> iterator() {
+		List<Event> events = new ArrayList<>(size());
+		for (BlockingQueue<Event> lane : lanes) {
+			events.addAll(lane);
+		}
+		return Collections.unmodifiableList(events).iterator();
+	}
+
+	private int pin(Event event) {
+		String taskId = event.getTaskId();
+		if (taskId == null) {
+			return laneOf(event);
+		}
+		return pins.compute(taskId, (id, pin) -> pin == null ? new Pin(laneOf(event)) : pin.increment()).lane;
+	}
+
+	private void unpin(Event event) {
+		String taskId = event.getTaskId();
+		if (taskId != null) {
+			pins.computeIfPresent(taskId, (id, pin) -> pin.decrement() == 0 ? null : pin);
+		}
+	}
+
+	private Event drained(Event event) {
+		size.decrementAndGet();
+		unpin(event);
+		return event;
+	}
+
+	private static void park() throws InterruptedException {
+		LockSupport.parkNanos(PARK_NANOS);
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Lane of a task with queued events and how many of them are queued, only mutated inside the map's compute functions.
+	 */
+	private static final class Pin {
+		private final int lane;
+		private int queued = 1;
+
+		Pin(int lane) {
+			this.lane = lane;
+		}
+
+		Pin increment() {
+			queued++;
+			return this;
+		}
+
+		int decrement() {
+			return --queued;
+		}
+	}
+}
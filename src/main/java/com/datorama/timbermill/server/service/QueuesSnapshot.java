@@ -0,0 +1,130 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * On-disk snapshot of the in-memory queues taken on shutdown, so events that were not indexed yet survive a restart.
+ * Each queue is drained into chunks that are Smile encoded and written in parallel, into a directory that is renamed into
+ * place only once complete, so a half written snapshot is never loaded. On startup the chunks are decoded in parallel
+ * a bounded window ahead of the consumer and handed back in their original order, then the snapshot is deleted.
+ */
+final class QueuesSnapshot {
+
+	private static final Logger LOG = LoggerFactory.getLogger(QueuesSnapshot.class);
+	private static final String CHUNK_SUFFIX = ".smile";
+	// Chunks decoded ahead of the consumer, only these are held in memory besides the queues being refilled
+	private static final int LOAD_WINDOW = Runtime.getRuntime().availableProcessors();
+
+	private final Path directory;
+	private final Path tempDirectory;
+	private final int chunkEvents;
+
+	QueuesSnapshot(Path directory, int chunkEvents) {
+		this.directory = directory;
+		this.tempDirectory = directory.resolveSibling(directory.getFileName() + ".tmp");
+		this.chunkEvents = chunkEvents;
+	}
+
+	/**
+	 * Drains the queues to disk, the queues are written one after the other and will be loaded in the same order.
+	 */
+	void save(List<BlockingQueue<Event>> queues) throws IOException {
+		long start = System.currentTimeMillis();
+		FileUtils.deleteDirectory(tempDirectory.toFile());
+		Files.createDirectories(tempDirectory);
+		List<List<Event>> chunks = new ArrayList<>();
+		for (BlockingQueue<Event> queue : queues) {
+			List<Event> chunk = new ArrayList<>(chunkEvents);
+			while (queue.drainTo(chunk, chunkEvents) > 0) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>(chunkEvents);
+			}
+		}
+		if (chunks.isEmpty()) {
+			FileUtils.deleteDirectory(tempDirectory.toFile());
+			return;
+		}
+		try {
+			IntStream.range(0, chunks.size()).parallel().forEach(i -> writeChunk(i, chunks.get(i)));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		FileUtils.deleteDirectory(directory.toFile());
+		Files.move(tempDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
+		long events = chunks.stream().mapToLong(List::size).sum();
+		LOG.info("Saved {} queued events in {} chunks to {} in {}ms", events, chunks.size(), directory, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Hands the snapshot's events to the consumer chunk by chunk and deletes the snapshot. Does nothing if there is no snapshot.
+	 */
+	void load(Consumer<List<Event>> consumer) throws IOException {
+		File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(CHUNK_SUFFIX));
+		if (files == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Arrays.sort(files, Comparator.comparing(File::getName));
+		Deque<CompletableFuture<List<Event>>> window = new ArrayDeque<>(LOAD_WINDOW);
+		int nextFile = 0;
+		long events = 0;
+		while (nextFile < files.length || !window.isEmpty()) {
+			while (nextFile < files.length && window.size() < LOAD_WINDOW) {
+				File file = files[nextFile++];
+				window.add(CompletableFuture.supplyAsync(() -> readChunk(file)));
+			}
+			List<Event> chunk;
+			try {
+				chunk = window.poll().join();
+			} catch (CompletionException e) {
+				window.forEach(pending -> pending.cancel(false));
+				if (e.getCause() instanceof UncheckedIOException) {
+					throw ((UncheckedIOException) e.getCause()).getCause();
+				}
+				throw e;
+			}
+			consumer.accept(chunk);
+			events += chunk.size();
+		}
+		FileUtils.deleteDirectory(directory.toFile());
+		LOG.info("Loaded {} queued events from {} in {}ms", events, directory, System.currentTimeMillis() - start);
+	}
+
+	private void writeChunk(int index, List<Event> chunk) {
+		try {
+			Files.write(tempDirectory.resolve(String.format("%010d%s", index, CHUNK_SUFFIX)), EventsCodec.encode(chunk));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static List<Event> readChunk(File file) {
+		try {
+			return EventsCodec.decode(Files.readAllBytes(file.toPath()));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed reading queues snapshot chunk " + file, e);
+		}
+	}
+}
@@ -2,35 +2,100 @@ package com.datorama.timbermill.server.service;
 
 import java.io.IOException;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
-import org.springframework.web.util.ContentCachingRequestWrapper;
+import org.springframework.web.util.WebUtils;
 
-import com.google.common.net.HttpHeaders;
+import io.micrometer.core.instrument.Gauge;
 
-import kamon.metric.Timer;
-import static com.datorama.oss.timbermill.common.KamonConstants.GZIP_DECOMPRESS_REQUEST_DURATION;
+import com.google.common.net.HttpHeaders;
 
 @Component
 public class RequestWrapperFilter extends OncePerRequestFilter {
 
+	private static final String EVENTS_PATH_PREFIX = "/events";
+
+	@Autowired
+	private IngestionGate ingestionGate;
+
+	@Value("${ASYNC_BODY_READ_ENABLED:false}")
+	private boolean asyncBodyReadEnabled;
+
+	@Value("${ASYNC_BODY_READ_TIMEOUT_MILLIS:60000}")
+	private long asyncBodyReadTimeoutMillis;
+
+	@Value("${ASYNC_BODY_MAX_BYTES:536870912}")
+	private long asyncBodyMaxBytes;
+
+	@Value("${ASYNC_BODIES_BUDGET_BYTES:1073741824}")
+	private long asyncBodiesBudgetBytes;
+
+	private EventsByteBudget asyncBodiesBudget;
+
+	@PostConstruct
+	public void init() {
+		asyncBodiesBudget = new EventsByteBudget(asyncBodiesBudgetBytes);
+		Gauge.builder("timbermill.async.bodies.bytes", asyncBodiesBudget, EventsByteBudget::getUsedBytes).baseUnit("bytes").register(PipelineMetrics.REGISTRY);
+	}
+
+	@Override
+	protected boolean shouldNotFilterAsyncDispatch() {
+		// The dispatch that follows an asynchronous body read still needs its gzip resources released
+		return false;
+	}
+
 	@Override
 	protected void doFilterInternal(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, FilterChain filterChain) throws ServletException, IOException {
 
-		boolean isGzipped = httpServletRequest.getHeader(HttpHeaders.CONTENT_ENCODING) != null && httpServletRequest.getHeader(HttpHeaders.CONTENT_ENCODING).contains("gzip");
-		if (isGzipped) {
-			Timer.Started gzipTimer = GZIP_DECOMPRESS_REQUEST_DURATION.withoutTags().start();
-			httpServletRequest = new GzippedInputStreamWrapper(httpServletRequest);
-			gzipTimer.stop();
+		if (isAsyncDispatch(httpServletRequest)) {
+			GzippedInputStreamWrapper gzippedRequest = WebUtils.getNativeRequest(httpServletRequest, GzippedInputStreamWrapper.class);
+			try {
+				filterChain.doFilter(httpServletRequest, httpServletResponse);
+			} finally {
+				if (gzippedRequest != null) {
+					gzippedRequest.release();
+				}
+			}
+			return;
+		}
 
+		httpServletRequest.setAttribute(LifecycleTracer.RECEIVED_NANOS_ATTRIBUTE, System.nanoTime());
+		if (isIngestionRequest(httpServletRequest) && ingestionGate.isSaturated()) {
+			// Reject before the body is read so a saturated server doesn't spend heap on parsing it
+			ingestionGate.reject(0);
+			httpServletResponse.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ingestionGate.getRetryAfterSeconds()));
+			httpServletResponse.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Timbermill is overloaded, retry later");
+			return;
+		}
+
+		boolean isGzipped = httpServletRequest.getHeader(HttpHeaders.CONTENT_ENCODING) != null && httpServletRequest.getHeader(HttpHeaders.CONTENT_ENCODING).contains("gzip");
+		if (asyncBodyReadEnabled && isIngestionRequest(httpServletRequest) && httpServletRequest.isAsyncSupported()) {
+			// Releases this container thread, the request is dispatched again once its whole body arrived
+			AsyncBodyReader.start(httpServletRequest, httpServletResponse, isGzipped, asyncBodyReadTimeoutMillis, asyncBodyMaxBytes, asyncBodiesBudget);
+		} else if (isGzipped) {
+			GzippedInputStreamWrapper gzippedRequest = new GzippedInputStreamWrapper(httpServletRequest);
+			try {
+				filterChain.doFilter(gzippedRequest, httpServletResponse);
+			} finally {
+				gzippedRequest.release();
+			}
 		} else {
-			httpServletRequest = new ContentCachingRequestWrapper(httpServletRequest);
+			// Parsed straight from the container stream, only a bounded part of the body is kept for error reporting
+			filterChain.doFilter(new CapturingRequestWrapper(httpServletRequest), httpServletResponse);
 		}
-		filterChain.doFilter(httpServletRequest, httpServletResponse);
+	}
+
+	private static boolean isIngestionRequest(HttpServletRequest request) {
+		return HttpMethod.POST.matches(request.getMethod()) && request.getRequestURI().startsWith(EVENTS_PATH_PREFIX);
 	}
 }
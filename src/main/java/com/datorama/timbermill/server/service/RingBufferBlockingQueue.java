@@ -0,0 +1,267 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pre-allocated, lock-free bounded queue built on a ring of sequenced slots.
+ * Producers claim a slot with a single CAS on the tail and publish it by bumping the slot's sequence,
+ * so there is no put lock and no per-element node allocation.
+ * Consumers claim a whole run of published slots with one CAS on the head in {@link #drainTo(Collection, int)},
+ * which is how the indexing thread consumes it. Several consumers are safe, but the queue is tuned for one.
+ * Blocking operations spin briefly and then park, there are no conditions to signal on the hot path.
+ * The ring's size is the capacity rounded up to a power of two, the queue still holds no more than its capacity.
+ *
+ * @param <E> element type
+ */
+final class RingBufferBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final int SPINS_BEFORE_PARK = 64;
+	private static final long PARK_NANOS = 50_000;
+
+	private final int capacity;
+	private final int ringSize;
+	private final int mask;
+	private final AtomicReferenceArray<E> buffer;
+	// Positions are stored truncated to int, comparisons are done on int differences which wrap correctly
+	private final AtomicIntegerArray sequences;
+	private final PaddedAtomicLong head = new PaddedAtomicLong();
+	private final PaddedAtomicLong tail = new PaddedAtomicLong();
+
+	RingBufferBlockingQueue(int requestedCapacity) {
+		if (requestedCapacity <= 0 || requestedCapacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Ring event queue capacity must be between 1 and " + MAX_CAPACITY
+					+ " (2^30, the largest power of two its ring can have), got " + requestedCapacity);
+		}
+		capacity = requestedCapacity;
+		ringSize = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+		mask = ringSize - 1;
+		buffer = new AtomicReferenceArray<>(ringSize);
+		sequences = new AtomicIntegerArray(ringSize);
+		for (int i = 0; i < ringSize; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		long pos = tail.get();
+		while (true) {
+			int index = (int) pos & mask;
+			int diff = sequences.get(index) - (int) pos;
+			if (diff == 0) {
+				// Head only moves forward, a stale read can only refuse an element, never overfill the queue
+				if (ringSize != capacity && pos - head.get() >= capacity) {
+					return false;
+				}
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer.lazySet(index, e);
+					sequences.set(index, (int) (pos + 1));
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	@Override
+	public E poll() {
+		long pos = head.get();
+		while (true) {
+			int index = (int) pos & mask;
+			int diff = sequences.get(index) - (int) (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					return consume(index, pos);
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	@Override
+	public E peek() {
+		long pos = head.get();
+		int index = (int) pos & mask;
+		if (sequences.get(index) == (int) (pos + 1)) {
+			return buffer.get(index);
+		}
+		return null;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		if (maxElements <= 0) {
+			return 0;
+		}
+		long pos = head.get();
+		while (true) {
+			int available = 0;
+			int limit = Math.min(maxElements, capacity);
+			while (available < limit && sequences.get((int) (pos + available) & mask) == (int) (pos + available + 1)) {
+				available++;
+			}
+			if (available == 0) {
+				long currentHead = head.get();
+				if (currentHead == pos) {
+					return 0;
+				}
+				pos = currentHead;
+				continue;
+			}
+			if (head.compareAndSet(pos, pos + available)) {
+				for (int i = 0; i < available; i++) {
+					c.add(consume((int) (pos + i) & mask, pos + i));
+				}
+				return available;
+			}
+			pos = head.get();
+		}
+	}
+
+	private E consume(int index, long pos) {
+		E e = buffer.get(index);
+		buffer.lazySet(index, null);
+		sequences.set(index, (int) (pos + ringSize));
+		return e;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		int spins = 0;
+		while (!offer(e)) {
+			spins = backoff(spins);
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int spins = 0;
+		while (!offer(e)) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			spins = backoff(spins);
+		}
+		return true;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		int spins = 0;
+		E e;
+		while ((e = poll()) == null) {
+			spins = backoff(spins);
+		}
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int spins = 0;
+		E e;
+		while ((e = poll()) == null) {
+			if (System.nanoTime() - deadline >= 0) {
+				return null;
+			}
+			spins = backoff(spins);
+		}
+		return e;
+	}
+
+	private static int backoff(int spins) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if (spins < SPINS_BEFORE_PARK) {
+			Thread.yield();
+			return spins + 1;
+		}
+		LockSupport.parkNanos(PARK_NANOS);
+		return spins;
+	}
+
+	@Override
+	public int size() {
+		while (true) {
+			long currentHead = head.get();
+			long currentTail = tail.get();
+			if (currentHead == head.get()) {
+				return (int) Math.max(0, Math.min(capacity, currentTail - currentHead));
+			}
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	/**
+	 * Weakly consistent snapshot of the published elements, removal through the iterator is not supported.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<>();
+		long currentTail = tail.get();
+		for (long pos = head.get(); pos < currentTail; pos++) {
+			int index = (int) pos & mask;
+			E e = buffer.get(index);
+			if (e != null && sequences.get(index) == (int) (pos + 1)) {
+				snapshot.add(e);
+			}
+		}
+		Iterator<E> iterator = snapshot.iterator();
+		return new Iterator<E>() {
+			@Override public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override public E next() {
+				return iterator.next();
+			}
+		};
+	}
+
+	@SuppressWarnings("unused")
+	private static final class PaddedAtomicLong extends AtomicLong {
+		// Keeps head and tail on separate cache lines
+		long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
@@ -0,0 +1,245 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of opaque records split into fixed size memory-mapped segment files.
+ * Records are written sequentially as {@code [length][crc32][payload]}, a zero length marks the end of a segment's data.
+ * Reading consumes records from a persisted cursor, and a segment file is deleted as soon as the cursor leaves it.
+ * On open, unread records are counted and the log is truncated at the first record failing its checksum,
+ * so a torn write from a crash loses only the records after it.
+ * Not thread safe for concurrent appends and reads, callers synchronize.
+ */
+final class SegmentedMappedLog implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SegmentedMappedLog.class);
+	private static final int HEADER_BYTES = 8;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CURSOR_FILE = "cursor";
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final boolean syncWrites;
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private final CRC32 crc = new CRC32();
+	private final FileChannel cursorChannel;
+	private final ByteBuffer cursorBuffer = ByteBuffer.allocate(12);
+	private long readSegmentId;
+	private int readPosition;
+	private long unreadRecords;
+
+	SegmentedMappedLog(Path directory, int segmentBytes, boolean syncWrites) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.syncWrites = syncWrites;
+		Files.createDirectories(directory);
+		cursorChannel = FileChannel.open(directory.resolve(CURSOR_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		readCursor();
+		openSegments();
+	}
+
+	/**
+	 * Appends all the records with one sequential write pass. When syncWrites is on the touched segments are forced to disk.
+	 */
+	void append(List<byte[]> records) throws IOException {
+		Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		for (byte[] record : records) {
+			int needed = HEADER_BYTES + record.length;
+			if (segment == null || segment.buffer.capacity() - segment.writePosition < needed + HEADER_BYTES) {
+				if (segment != null && syncWrites) {
+					segment.buffer.force();
+				}
+				segment = createSegment(segment == null ? readSegmentId : segment.id + 1, needed + HEADER_BYTES);
+			}
+			crc.reset();
+			crc.update(record, 0, record.length);
+			ByteBuffer buffer = segment.buffer;
+			buffer.putInt(segment.writePosition + 4, (int) crc.getValue());
+			buffer.position(segment.writePosition + HEADER_BYTES);
+			buffer.put(record);
+			// The length is written last, so a record is only visible once it is complete
+			buffer.putInt(segment.writePosition, record.length);
+			segment.writePosition += needed;
+			unreadRecords++;
+		}
+		if (syncWrites && segment != null) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Reads and consumes up to {@code maxRecords} records, deleting every segment that was fully consumed.
+	 */
+	List<byte[]> poll(int maxRecords) throws IOException {
+		List<byte[]> records = new ArrayList<>(Math.min(maxRecords, (int) Math.min(Integer.MAX_VALUE, unreadRecords)));
+		while (records.size() < maxRecords && unreadRecords > 0) {
+			Segment segment = segments.get(readSegmentId);
+			if (segment == null) {
+				Map.Entry<Long, Segment> next = segments.ceilingEntry(readSegmentId);
+				if (next == null) {
+					break;
+				}
+				readSegmentId = next.getKey();
+				readPosition = 0;
+				continue;
+			}
+			int length = readPosition + HEADER_BYTES <= segment.buffer.capacity() ? segment.buffer.getInt(readPosition) : 0;
+			if (length <= 0) {
+				if (segment.id == segments.lastKey()) {
+					break;
+				}
+				deleteSegment(segment);
+				readSegmentId = segment.id + 1;
+				readPosition = 0;
+				continue;
+			}
+			byte[] record = new byte[length];
+			ByteBuffer view = segment.buffer.duplicate();
+			view.position(readPosition + HEADER_BYTES);
+			view.get(record);
+			records.add(record);
+			readPosition += HEADER_BYTES + length;
+			unreadRecords--;
+		}
+		writeCursor();
+		return records;
+	}
+
+	long size() {
+		return unreadRecords;
+	}
+
+	/**
+	 * Deletes every segment and starts over from an empty log.
+	 */
+	void reset() throws IOException {
+		for (Segment segment : new ArrayList<>(segments.values())) {
+			deleteSegment(segment);
+		}
+		readSegmentId = 0;
+		readPosition = 0;
+		unreadRecords = 0;
+		writeCursor();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writeCursor();
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+			segment.channel.close();
+		}
+		segments.clear();
+		cursorChannel.close();
+	}
+
+	private Segment createSegment(long id, int minimumBytes) throws IOException {
+		Path path = directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+		Segment segment = new Segment(id, path, Math.max(segmentBytes, minimumBytes));
+		segments.put(id, segment);
+		if (segments.size() == 1) {
+			readSegmentId = id;
+			readPosition = 0;
+		}
+		return segment;
+	}
+
+	private void deleteSegment(Segment segment) throws IOException {
+		segments.remove(segment.id);
+		segment.channel.close();
+		// The mapping itself is released once the buffer is collected, the file name is gone right away
+		Files.deleteIfExists(segment.path);
+	}
+
+	private void openSegments() throws IOException {
+		File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			if (id < readSegmentId) {
+				Files.deleteIfExists(file.toPath());
+				continue;
+			}
+			segments.put(id, new Segment(id, file.toPath(), (int) file.length()));
+		}
+		for (Segment segment : segments.values()) {
+			int position = segment.id == readSegmentId ? readPosition : 0;
+			segment.writePosition = recover(segment, position);
+		}
+		if (!segments.isEmpty() && !segments.containsKey(readSegmentId)) {
+			readSegmentId = segments.firstKey();
+			readPosition = 0;
+		}
+		LOG.info("Opened mapped log {} with {} segments and {} unread records", directory, segments.size(), unreadRecords);
+	}
+
+	/**
+	 * Counts the valid records from the given position and returns where the next record should be written.
+	 */
+	private int recover(Segment segment, int position) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		while (position + HEADER_BYTES <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+				break;
+			}
+			byte[] record = new byte[length];
+			buffer.position(position + HEADER_BYTES);
+			buffer.get(record);
+			crc.reset();
+			crc.update(record, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+				LOG.warn("Corrupted record in {} at {}, truncating the log there", segment.path, position);
+				segment.buffer.putInt(position, 0);
+				break;
+			}
+			unreadRecords++;
+			position += HEADER_BYTES + length;
+		}
+		return position;
+	}
+
+	private void readCursor() throws IOException {
+		cursorBuffer.clear();
+		if (cursorChannel.read(cursorBuffer, 0) == cursorBuffer.capacity()) {
+			readSegmentId = cursorBuffer.getLong(0);
+			readPosition = cursorBuffer.getInt(8);
+		}
+	}
+
+	private void writeCursor() throws IOException {
+		cursorBuffer.clear();
+		cursorBuffer.putLong(readSegmentId).putInt(readPosition).flip();
+		cursorChannel.write(cursorBuffer, 0);
+	}
+
+	private static final class Segment {
+		private final long id;
+		private final Path path;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+
+		Segment(long id, Path path, int size) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+}
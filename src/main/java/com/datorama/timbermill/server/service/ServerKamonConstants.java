@@ -0,0 +1,44 @@
+package com.datorama.timbermill.server.service;
+
+import kamon.Kamon;
+import kamon.metric.Metric;
+
+/**
+ * Kamon instruments owned by the server, the shared pipeline ones live in {@link com.datorama.oss.timbermill.common.KamonConstants}.
+ */
+final class ServerKamonConstants {
+
+	static final Metric.Counter REJECTED_REQUESTS_COUNTER = Kamon.counter("timbermill2.server.rejected.requests.counter");
+	static final Metric.Counter REJECTED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.rejected.events.counter");
+	static final Metric.Timer ADMISSION_LATENCY_TIMER = Kamon.timer("timbermill2.server.admission.latency.timer");
+	static final Metric.Gauge PENDING_EVENTS_GAUGE = Kamon.gauge("timbermill2.server.pending.events.gauge");
+	static final Metric.Counter DUPLICATED_BATCHES_COUNTER = Kamon.counter("timbermill2.server.duplicated.batches.counter");
+	static final Metric.Counter DUPLICATED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.duplicated.events.counter");
+	static final Metric.Counter CLIENT_RATE_LIMITED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.client.rate.limited.events.counter");
+	static final Metric.Counter EVICTED_RATE_LIMITED_CLIENTS_COUNTER = Kamon.counter("timbermill2.server.evicted.rate.limited.clients.counter");
+	static final Metric.Counter DEFERRED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.deferred.events.counter");
+	static final Metric.Counter SPILLED_CLIENT_EVENTS_COUNTER = Kamon.counter("timbermill2.server.spilled.client.events.counter");
+
+	static final Metric.Histogram REQUEST_SIZE_HISTOGRAM = Kamon.histogram("timbermill2.server.request.size.histogram");
+	static final Metric.Timer REQUEST_PARSE_TIMER = Kamon.timer("timbermill2.server.request.parse.timer");
+	static final Metric.Timer REQUEST_ENQUEUE_TIMER = Kamon.timer("timbermill2.server.request.enqueue.timer");
+	static final Metric.Histogram DRAIN_BATCH_SIZE_HISTOGRAM = Kamon.histogram("timbermill2.server.drain.batch.size.histogram");
+	static final Metric.Timer DRAIN_LOOP_TIMER = Kamon.timer("timbermill2.server.drain.loop.timer");
+	static final Metric.Counter SPILLED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.spilled.events.counter");
+	static final Metric.Counter FORWARDED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.forwarded.events.counter");
+	static final Metric.Counter FORWARD_FALLBACK_EVENTS_COUNTER = Kamon.counter("timbermill2.server.forward.fallback.events.counter");
+	static final Metric.Counter COALESCED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.coalesced.events.counter");
+	static final Metric.Counter REPLAYED_BULKS_COUNTER = Kamon.counter("timbermill2.server.replayed.bulks.counter");
+	static final Metric.Counter REPLAYED_EVENTS_COUNTER = Kamon.counter("timbermill2.server.replayed.events.counter");
+	static final Metric.Timer REPLAY_BULKS_ROUND_TIMER = Kamon.timer("timbermill2.server.replay.bulks.round.timer");
+	static final Metric.Timer LIFECYCLE_STAGE_TIMER = Kamon.timer("timbermill2.server.lifecycle.stage.timer");
+	static final Metric.Gauge EVENTS_QUEUE_SIZE_GAUGE = Kamon.gauge("timbermill2.server.events.queue.size.gauge");
+	static final Metric.Gauge OVERFLOWED_QUEUE_SIZE_GAUGE = Kamon.gauge("timbermill2.server.overflowed.queue.size.gauge");
+	static final Metric.Gauge QUEUED_BYTES_GAUGE = Kamon.gauge("timbermill2.server.queued.bytes.gauge");
+	static final Metric.Gauge RECEIVING_BACKLOG_GAUGE = Kamon.gauge("timbermill2.server.receiving.backlog.gauge");
+	static final Metric.Gauge PERSISTED_BULKS_GAUGE = Kamon.gauge("timbermill2.server.persisted.bulks.gauge");
+	static final Metric.Gauge PERSISTED_EVENTS_LISTS_GAUGE = Kamon.gauge("timbermill2.server.persisted.events.lists.gauge");
+
+	private ServerKamonConstants() {
+	}
+}
@@ -0,0 +1,255 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Binds events one at a time from a request stream and hands them to a {@link BatchSubmitter} in small batches,
+ * so the memory a request holds is bounded by the batch size rather than by the request size.
+ * Every batch goes through the same admission as a batch posted whole. Once one is refused the stream stops, and the
+ * result tells the client where to resume it from.
+ */
+@Component
+public class StreamingEventsIngester {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StreamingEventsIngester.class);
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int INITIAL_LINE_SIZE = 8 * 1024;
+
+	private final int batchSize;
+
+	@Autowired
+	private EventsDeduplicator eventsDeduplicator;
+
+	public StreamingEventsIngester(@Value("${STREAMING_BATCH_SIZE:1000}") int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Admits a batch of events, as {@link TimbermillController} does for a batch posted whole.
+	 */
+	interface BatchSubmitter {
+		/**
+		 * @return a successful response if the batch was accepted, otherwise the response refusing it.
+		 */
+		ResponseEntity<String> submit(Collection<Event> events);
+	}
+
+	/**
+	 * Reads either a single array of events or a sequence of root level events from the parser.
+	 * A parse error stops the stream but keeps every event accepted before it.
+	 * If a batch is refused, the stream is to be resumed from the event at {@link StreamingIngestResult#getResumeFrom()},
+	 * counting from 0.
+	 */
+	StreamingIngestResult ingest(JsonParser parser, PipelineMetrics.Endpoint endpoint, BatchSubmitter submitter) throws IOException {
+		StreamingIngestResult result = new StreamingIngestResult();
+		long startTime = System.nanoTime();
+		List<Event> batch = new ArrayList<>(batchSize);
+		long eventsRead = 0;
+		try {
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_ARRAY) {
+				token = parser.nextToken();
+			}
+			while (token != null && token != JsonToken.END_ARRAY) {
+				if (batch.isEmpty()) {
+					result.batchStart = eventsRead;
+				}
+				batch.add(EventsCodec.readEvent(parser));
+				eventsRead++;
+				if (batch.size() >= batchSize) {
+					if (!flush(batch, submitter, result)) {
+						break;
+					}
+					batch = new ArrayList<>(batchSize);
+				}
+				token = parser.nextToken();
+			}
+		} catch (JsonProcessingException e) {
+			result.addError("byte " + parser.getCurrentLocation().getByteOffset(), e.getOriginalMessage());
+		}
+		if (result.getRefusal() == null) {
+			flush(batch, submitter, result);
+		}
+		record(endpoint, result, parser.getCurrentLocation().getByteOffset(), startTime);
+		return result;
+	}
+
+	/**
+	 * Reads newline delimited JSON, one event per line. A malformed line is reported and skipped,
+	 * the lines around it are still ingested.
+	 * If a batch is refused, the stream is to be resumed from the line at {@link StreamingIngestResult#getResumeFrom()},
+	 * counting from 1.
+	 */
+	StreamingIngestResult ingestLines(InputStream in, PipelineMetrics.Endpoint endpoint, BatchSubmitter submitter) throws IOException {
+		StreamingIngestResult result = new StreamingIngestResult();
+		long startTime = System.nanoTime();
+		long bytesRead = 0;
+		List<Event> batch = new ArrayList<>(batchSize);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		byte[] line = new byte[INITIAL_LINE_SIZE];
+		int lineLength = 0;
+		long lineNumber = 1;
+		int n;
+		while ((n = in.read(chunk)) != -1) {
+			bytesRead += n;
+			int start = 0;
+			for (int i = 0; i < n; i++) {
+				if (chunk[i] != '\n') {
+					continue;
+				}
+				line = append(line, lineLength, chunk, start, i - start);
+				lineLength += i - start;
+				acceptLine(line, lineLength, lineNumber++, batch, result);
+				if (batch.size() >= batchSize) {
+					if (!flush(batch, submitter, result)) {
+						record(endpoint, result, bytesRead, startTime);
+						return result;
+					}
+					batch = new ArrayList<>(batchSize);
+				}
+				lineLength = 0;
+				start = i + 1;
+			}
+			line = append(line, lineLength, chunk, start, n - start);
+			lineLength += n - start;
+		}
+		acceptLine(line, lineLength, lineNumber, batch, result);
+		flush(batch, submitter, result);
+		record(endpoint, result, bytesRead, startTime);
+		return result;
+	}
+
+	private static void acceptLine(byte[] line, int length, long lineNumber, List<Event> batch, StreamingIngestResult result) throws IOException {
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		if (isBlank(line, length)) {
+			return;
+		}
+		try {
+			Event event = EventsCodec.readJsonEvent(line, 0, length);
+			if (batch.isEmpty()) {
+				result.batchStart = lineNumber;
+			}
+			batch.add(event);
+		} catch (JsonProcessingException e) {
+			result.addError("line " + lineNumber, e.getOriginalMessage());
+		}
+	}
+
+	private static boolean isBlank(byte[] line, int length) {
+		for (int i = 0; i < length; i++) {
+			if (line[i] != ' ' && line[i] != '\t') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] append(byte[] line, int lineLength, byte[] chunk, int offset, int length) {
+		if (length <= 0) {
+			return line;
+		}
+		if (lineLength + length > line.length) {
+			line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+		}
+		System.arraycopy(chunk, offset, line, lineLength, length);
+		return line;
+	}
+
+	/**
+	 * @return false if the batch was refused, the stream is then to be resumed from the batch's first event.
+	 */
+	private boolean flush(List<Event> batch, BatchSubmitter submitter, StreamingIngestResult result) {
+		if (batch.isEmpty()) {
+			return true;
+		}
+		Collection<Event> unique = eventsDeduplicator.removeDuplicateEvents(batch);
+		long submitStart = System.nanoTime();
+		ResponseEntity<String> response = submitter.submit(unique);
+		result.submitNanos += System.nanoTime() - submitStart;
+		if (!response.getStatusCode().is2xxSuccessful()) {
+			result.refusal = response;
+			result.resumeFrom = result.batchStart;
+			LOG.debug("Stopped streaming ingestion after {} events, the next batch was refused with {}", result.accepted, response.getStatusCode());
+			return false;
+		}
+		// Only accepted events are remembered, the client resends the rest of the stream once refused
+		eventsDeduplicator.remember(0, unique);
+		result.accepted += unique.size();
+		return true;
+	}
+
+	private static void record(PipelineMetrics.Endpoint endpoint, StreamingIngestResult result, long bytes, long startTime) {
+		// Parsing and submitting interleave on a stream, parse time is what is left after the submit time.
+		// The enqueue time is recorded by the admission itself
+		endpoint.recordParsed(bytes, System.nanoTime() - startTime - result.submitNanos);
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	static class StreamingIngestResult {
+		private static final int MAX_REPORTED_ERRORS = 20;
+
+		private long accepted;
+		private ResponseEntity<String> refusal;
+		private long batchStart;
+		private long resumeFrom = -1;
+		private long errorsAmount;
+		private long submitNanos;
+		private final List<String> errors = new ArrayList<>();
+
+		void addError(String location, String message) {
+			errorsAmount++;
+			if (errors.size() < MAX_REPORTED_ERRORS) {
+				errors.add(location + ": " + message);
+			}
+		}
+
+		long getAccepted() {
+			return accepted;
+		}
+
+		/**
+		 * @return the response that refused a batch and stopped the stream, or null if none was refused.
+		 */
+		ResponseEntity<String> getRefusal() {
+			return refusal;
+		}
+
+		/**
+		 * @return where the client is to resume the stream from, or -1 if none of it was refused.
+		 */
+		long getResumeFrom() {
+			return resumeFrom;
+		}
+
+		long getErrorsAmount() {
+			return errorsAmount;
+		}
+
+		List<String> getErrors() {
+			return errors;
+		}
+	}
+}
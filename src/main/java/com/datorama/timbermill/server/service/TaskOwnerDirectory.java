@@ -0,0 +1,79 @@
+package com.datorama.timbermill.server.service;
+
+/**
+ * Remembers, for task ids seen in start events, the fingerprint of the primary id of their task tree, so the events of a
+ * task that only carry its task id can be routed along with its start.
+ * Keeps 64-bit fingerprints in lock-striped open-addressing tables of primitives, so neither a lookup nor an update allocates.
+ * The table is lossy by design: when a probe run is full the oldest entry of the run is overwritten, which can only route
+ * a task's later events by their own task id.
+ */
+final class TaskOwnerDirectory {
+
+	private static final int STRIPES = 64;
+	private static final int MAX_PROBES = 4;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	TaskOwnerDirectory(int capacity) {
+		int stripeCapacity = Math.max(MAX_PROBES, Integer.highestOneBit(Math.max(1, capacity / STRIPES - 1)) << 1);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(stripeCapacity);
+		}
+	}
+
+	void put(long taskKey, long primaryKey) {
+		stripes[(int) taskKey & (STRIPES - 1)].put(taskKey, primaryKey);
+	}
+
+	/**
+	 * @return the primary id fingerprint of the task, or 0 if it is not known.
+	 */
+	long get(long taskKey) {
+		return stripes[(int) taskKey & (STRIPES - 1)].get(taskKey);
+	}
+
+	private static final class Stripe {
+		private final long[] taskKeys;
+		private final long[] primaryKeys;
+		private final long[] insertedAt;
+		private final int mask;
+		private long insertions;
+
+		Stripe(int capacity) {
+			taskKeys = new long[capacity];
+			primaryKeys = new long[capacity];
+			insertedAt = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		synchronized void put(long taskKey, long primaryKey) {
+			// Low bits picked the stripe, start probing from the high ones
+			int start = (int) (taskKey >>> 32) & mask;
+			int victim = start;
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int slot = (start + i) & mask;
+				if (taskKeys[slot] == taskKey || taskKeys[slot] == 0) {
+					victim = slot;
+					break;
+				}
+				if (insertedAt[slot] < insertedAt[victim]) {
+					victim = slot;
+				}
+			}
+			taskKeys[victim] = taskKey;
+			primaryKeys[victim] = primaryKey;
+			insertedAt[victim] = ++insertions;
+		}
+
+		synchronized long get(long taskKey) {
+			int start = (int) (taskKey >>> 32) & mask;
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int slot = (start + i) & mask;
+				if (taskKeys[slot] == taskKey) {
+					return primaryKeys[slot];
+				}
+			}
+			return 0;
+		}
+	}
+}
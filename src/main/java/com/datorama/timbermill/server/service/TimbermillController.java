@@ -1,13 +1,18 @@
 package com.datorama.timbermill.server.service;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletRequestWrapper;
 import javax.validation.Valid;
 
 import org.apache.commons.io.IOUtils;
@@ -15,68 +20,371 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.util.WebUtils;
+
+import io.micrometer.core.instrument.Gauge;
 
 import com.datorama.oss.timbermill.unit.Event;
 import com.datorama.oss.timbermill.unit.EventsList;
 import com.datorama.oss.timbermill.unit.EventsWrapper;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.datorama.timbermill.server.service.StreamingEventsIngester.StreamingIngestResult;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
 @RestController
 public class TimbermillController {
 
 	private static final Logger LOG = LoggerFactory.getLogger(TimbermillController.class);
 
-	private static ExecutorService executorService;
-	private final Cache<String, String> idsCache;
+	private static final String EVENT_RECEIVED = "Event received";
+	/**
+	 * Where a client is to resume a stream that was refused part way: an event index for a stream of events, a line
+	 * number for newline delimited JSON.
+	 */
+	static final String RESUME_FROM_HEADER = "X-Timbermill-Resume-From";
+	private static final int RECEIVING_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private final ThreadPoolExecutor executorService;
+	private final long parseErrorLogIntervalMillis;
+	private final AtomicLong nextParseErrorLogMillis = new AtomicLong();
+	private final AtomicInteger unloggedParseErrors = new AtomicInteger();
 
 	@Autowired
 	private TimbermillService timbermillService;
 
-	public TimbermillController(@Value("${RECEIVING_THREAD:10}") int numOfThreads) {
-		CacheBuilder<String, String> cacheBuilder = CacheBuilder.newBuilder().weigher((key, value) -> key.length() + value.length());
-		idsCache = cacheBuilder
-				.maximumWeight(1000000) //1MB
-				.expireAfterWrite(10, TimeUnit.SECONDS)
-				.build();
-		executorService = Executors.newFixedThreadPool(numOfThreads);
+	@Autowired
+	private IngestionGate ingestionGate;
+
+	@Autowired
+	private EventsDeduplicator eventsDeduplicator;
+
+	@Autowired
+	private StreamingEventsIngester streamingEventsIngester;
+
+	@Autowired
+	private ClientRateLimiter clientRateLimiter;
+
+	@Autowired
+	private FairBatchScheduler fairBatchScheduler;
+
+	@Autowired
+	private ClusterRouter clusterRouter;
+
+	@Autowired
+	private LifecycleTracer lifecycleTracer;
+
+	public TimbermillController(@Value("${RECEIVING_THREAD:10}") int numOfThreads,
+								@Value("${RECEIVING_QUEUE_CAPACITY:10000}") int receivingQueueCapacity,
+								@Value("${PARSE_ERROR_LOG_INTERVAL_MILLIS:10000}") long parseErrorLogIntervalMillis) {
+		this.parseErrorLogIntervalMillis = parseErrorLogIntervalMillis;
+		executorService = new ThreadPoolExecutor(numOfThreads, numOfThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(receivingQueueCapacity));
+		Gauge.builder("timbermill.receiving.backlog", executorService, executor -> executor.getQueue().size()).register(PipelineMetrics.REGISTRY);
 	}
 
 	@RequestMapping(method = RequestMethod.POST, value = "/events")
-	public String ingestEvents(@RequestBody @Valid EventsWrapper eventsWrapper) {
-		executorService.submit(() -> {
-			String eventsId = eventsWrapper.getId();
-			if (eventsId != null){
-				if (idsCache.getIfPresent(eventsId) != null){
-					LOG.warn("Got duplicated EventsWrapper {}", eventsWrapper.getEvents());
-					return;
-				}
-				else{
-					idsCache.put(eventsId, eventsId);
+	public ResponseEntity<String> ingestEvents(@RequestBody @Valid EventsWrapper eventsWrapper, HttpServletRequest request) {
+		String eventsId = eventsWrapper.getId();
+		long batchFingerprint = eventsDeduplicator.batchFingerprint(eventsId);
+		if (eventsDeduplicator.isDuplicateBatch(batchFingerprint)) {
+			LOG.warn("Got duplicated EventsWrapper {}", eventsId);
+			return ResponseEntity.ok(EVENT_RECEIVED);
+		}
+		Collection<Event> events = eventsDeduplicator.removeDuplicateEvents(eventsWrapper.getEvents());
+		return rememberIfAccepted(batchFingerprint, events, submit(PipelineMetrics.Endpoint.EVENTS, events, request, 0));
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/events/v2")
+	public ResponseEntity<String> ingestEventsNew(@RequestBody @Valid EventsList eventsList, HttpServletRequest request) {
+		long batchFingerprint = eventsDeduplicator.batchFingerprint(eventsList);
+		if (eventsDeduplicator.isDuplicateBatch(batchFingerprint)) {
+			LOG.warn("Got duplicated EventsList of {} events", eventsList.size());
+			return ResponseEntity.ok(EVENT_RECEIVED);
+		}
+		Collection<Event> events = eventsDeduplicator.removeDuplicateEvents(eventsList);
+		return rememberIfAccepted(batchFingerprint, events, submit(PipelineMetrics.Endpoint.EVENTS_V2, events, request, 0));
+	}
+
+	/**
+	 * Only an accepted batch is remembered, a rejected one, or one that failed with an exception, is retried by its client.
+	 */
+	private ResponseEntity<String> rememberIfAccepted(long batchFingerprint, Collection<Event> events, ResponseEntity<String> response) {
+		if (response.getStatusCode().is2xxSuccessful()) {
+			eventsDeduplicator.remember(batchFingerprint, events);
+		}
+		return response;
+	}
+
+	/**
+	 * Batches forwarded by other cluster nodes. Events of tasks whose owner the forwarding node did not know are forwarded
+	 * once more, to the owner this node knows of, see {@link ClusterRouter}.
+	 * Their clients were rate limited by the forwarding node, so only cluster members may post here.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = ClusterRouter.INTERNAL_EVENTS_PATH, consumes = EventsCodec.SMILE_CONTENT_TYPE)
+	public ResponseEntity<String> ingestForwardedEvents(HttpServletRequest request) throws IOException {
+		if (!clusterRouter.isClusterMember(request)) {
+			LOG.warn("Refused forwarded events from {}, it is not a cluster member", request.getRemoteAddr());
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Only cluster members may forward events");
+		}
+		long parseStart = System.nanoTime();
+		byte[] body;
+		try (InputStream in = request.getInputStream()) {
+			body = IOUtils.toByteArray(in);
+		}
+		List<Event> events = EventsCodec.decode(body);
+		PipelineMetrics.Endpoint.INTERNAL_EVENTS.recordParsed(body.length, System.nanoTime() - parseStart);
+		return submit(PipelineMetrics.Endpoint.INTERNAL_EVENTS, events, request, forwardHops(request));
+	}
+
+	private static int forwardHops(HttpServletRequest request) {
+		String hops = request.getHeader(ClusterRouter.FORWARD_HOPS_HEADER);
+		try {
+			return hops != null ? Math.max(1, Integer.parseInt(hops)) : ClusterRouter.MAX_FORWARD_HOPS;
+		} catch (NumberFormatException e) {
+			return ClusterRouter.MAX_FORWARD_HOPS;
+		}
+	}
+
+	/**
+	 * Owners of tasks that started on other cluster nodes, sent to the tasks' home node, see {@link ClusterRouter}.
+	 */
+	@RequestMapping(method = RequestMethod.POST, value = ClusterRouter.INTERNAL_OWNERS_PATH, consumes = ClusterRouter.HINTS_CONTENT_TYPE)
+	public ResponseEntity<String> learnOwners(HttpServletRequest request) throws IOException {
+		if (!clusterRouter.isClusterMember(request)) {
+			LOG.warn("Refused ownership hints from {}, it is not a cluster member", request.getRemoteAddr());
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Only cluster members may send ownership hints");
+		}
+		try (InputStream in = request.getInputStream()) {
+			clusterRouter.learnOwners(IOUtils.toByteArray(in));
+		}
+		return ResponseEntity.ok(EVENT_RECEIVED);
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/events/v3", consumes = EventsCodec.SMILE_CONTENT_TYPE)
+	public ResponseEntity<String> ingestEventsBinary(HttpServletRequest request) throws IOException {
+		try (JsonParser parser = EventsCodec.createSmileParser(request.getInputStream())) {
+			return streamingResponse(streamingEventsIngester.ingest(parser, PipelineMetrics.Endpoint.EVENTS_V3,
+					events -> submit(PipelineMetrics.Endpoint.EVENTS_V3, events, request, 0)));
+		}
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/events/v2/stream", consumes = EventsCodec.NDJSON_CONTENT_TYPE)
+	public ResponseEntity<String> ingestEventsLines(HttpServletRequest request) throws IOException {
+		try (InputStream in = request.getInputStream()) {
+			return streamingResponse(streamingEventsIngester.ingestLines(in, PipelineMetrics.Endpoint.EVENTS_V2_STREAM,
+					events -> submit(PipelineMetrics.Endpoint.EVENTS_V2_STREAM, events, request, 0)));
+		}
+	}
+
+	@RequestMapping(method = RequestMethod.POST, value = "/events/v2/stream", consumes = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<String> ingestEventsArrayStream(HttpServletRequest request) throws IOException {
+		try (JsonParser parser = EventsCodec.createJsonParser(request.getInputStream())) {
+			return streamingResponse(streamingEventsIngester.ingest(parser, PipelineMetrics.Endpoint.EVENTS_V2_STREAM,
+					events -> submit(PipelineMetrics.Endpoint.EVENTS_V2_STREAM, events, request, 0)));
+		}
+	}
+
+	private ResponseEntity<String> streamingResponse(StreamingIngestResult result) {
+		ResponseEntity<String> refusal = result.getRefusal();
+		if (refusal != null) {
+			return ResponseEntity.status(refusal.getStatusCode())
+					.headers(refusal.getHeaders())
+					.header(RESUME_FROM_HEADER, String.valueOf(result.getResumeFrom()))
+					.body(refusal.getBody() + ", accepted " + result.getAccepted() + " events, resume from " + result.getResumeFrom());
+		}
+		if (result.getErrorsAmount() > 0) {
+			LOG.error("Error parsing streamed request after {} accepted events: {}", result.getAccepted(), result.getErrors());
+			HttpStatus status = result.getAccepted() > 0 ? HttpStatus.OK : HttpStatus.BAD_REQUEST;
+			return ResponseEntity.status(status)
+					.body("Accepted " + result.getAccepted() + " events, " + result.getErrorsAmount() + " errors: " + result.getErrors());
+		}
+		return ResponseEntity.ok(EVENT_RECEIVED);
+	}
+
+	/**
+	 * Admits the whole batch, durably in durable mode, and only then routes it, so a rejected batch was never forwarded
+	 * and a forwarded event was written to the write-ahead log first.
+	 *
+	 * @param forwardHops how many times the batch was forwarded by other cluster nodes, its client was rate limited by the first one.
+	 */
+	private ResponseEntity<String> submit(PipelineMetrics.Endpoint endpoint, Collection<Event> batch, HttpServletRequest request, int forwardHops) {
+		int batchAmount = batch.size();
+		if (batchAmount == 0) {
+			return ResponseEntity.ok(EVENT_RECEIVED);
+		}
+		if (!ingestionGate.tryAcquire(batchAmount)) {
+			return tooManyRequests(batchAmount);
+		}
+		String client = null;
+		if (clientRateLimiter.isEnabled() && forwardHops == 0) {
+			String key = clientRateLimiter.clientKey(request, batch);
+			if (!clientRateLimiter.tryAcquire(key, batchAmount)) {
+				if (!fairBatchScheduler.reserve(key, batchAmount)) {
+					boolean spilled = fairBatchScheduler.spill(key, batch);
+					ingestionGate.release(batchAmount);
+					return spilled ? ResponseEntity.ok(EVENT_RECEIVED) : tooManyRequests(batchAmount);
 				}
+				client = key;
 			}
-			Collection<Event> events = eventsWrapper.getEvents();
-			timbermillService.handleEvents(events);
-		});
-		return "Event received";
+		}
+		lifecycleTracer.parsed(batch, receivedNanos(request));
+		long walPosition;
+		try {
+			walPosition = timbermillService.isDurable() ? timbermillService.appendDurably(batch) : -1;
+		} catch (IOException e) {
+			if (client != null) {
+				fairBatchScheduler.unreserve(client, batchAmount);
+			}
+			ingestionGate.release(batchAmount);
+			LOG.error("Failed writing {} events to the write-ahead log", batchAmount, e);
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Failed persisting events, retry later");
+		}
+		if (client != null) {
+			// Over its limit, the client's batch waits for its fair share of the queues, it is routed once pushed.
+			// Deferred events are bounded by the scheduler, they don't keep other clients from being admitted
+			ingestionGate.release(batchAmount);
+			fairBatchScheduler.defer(client, batch, walPosition);
+			return ResponseEntity.ok(EVENT_RECEIVED);
+		}
+		Collection<Event> events = clusterRouter.route(batch, walPosition, forwardHops);
+		int eventsAmount = events.size();
+		// Forwarded events wait in the forwarders' own bounded buffers
+		ingestionGate.release(batchAmount - eventsAmount);
+		if (eventsAmount == 0) {
+			// All of the batch was forwarded to the nodes owning it, its write-ahead log position is only retained by them
+			timbermillService.releaseDurably(walPosition);
+			return ResponseEntity.ok(EVENT_RECEIVED);
+		}
+		long submitTime = System.nanoTime();
+		Runnable handleEvents = () -> {
+			long startTime = System.nanoTime();
+			ingestionGate.recordAdmissionLatency(startTime - submitTime);
+			lifecycleTracer.stamp(events, LifecycleTracer.Stage.ADMISSION);
+			try {
+				timbermillService.handleEvents(events, walPosition);
+				endpoint.recordEnqueued(System.nanoTime() - startTime);
+			} finally {
+				ingestionGate.release(eventsAmount);
+			}
+		};
+		try {
+			executorService.execute(handleEvents);
+		} catch (RejectedExecutionException e) {
+			if (walPosition < 0 && eventsAmount == batchAmount) {
+				ingestionGate.release(eventsAmount);
+				return tooManyRequests(eventsAmount);
+			}
+			// Already durable or partly forwarded, so it is acknowledged either way, a retry would duplicate it
+			handleEvents.run();
+		}
+		return ResponseEntity.ok(EVENT_RECEIVED);
 	}
 
-	@RequestMapping(method = RequestMethod.POST, value = "/events/v2")
-	public String ingestEventsNew(@RequestBody @Valid EventsList events) {
-		executorService.submit(() -> timbermillService.handleEvents(events));
-		return "Event received";
+	private static long receivedNanos(HttpServletRequest request) {
+		Object receivedNanos = request.getAttribute(LifecycleTracer.RECEIVED_NANOS_ATTRIBUTE);
+		return receivedNanos instanceof Long ? (Long) receivedNanos : System.nanoTime();
+	}
+
+	private ResponseEntity<String> tooManyRequests(int eventsAmount) {
+		ingestionGate.reject(eventsAmount);
+		return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+				.header(HttpHeaders.RETRY_AFTER, String.valueOf(ingestionGate.getRetryAfterSeconds()))
+				.body("Timbermill is overloaded, retry later");
+	}
+
+	/**
+	 * Lets batches that were already acknowledged reach the queues before the service shuts down.
+	 */
+	@PreDestroy
+	public void tearDown() {
+		executorService.shutdown();
+		try {
+			if (!executorService.awaitTermination(RECEIVING_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				LOG.warn("Receiving threads did not finish in {} seconds, {} batches were not enqueued", RECEIVING_SHUTDOWN_TIMEOUT_SECONDS, executorService.getQueue().size());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	int getReceivingBacklog() {
+		return executorService.getQueue().size();
+	}
+
+	int getReceivingThreads() {
+		return executorService.getCorePoolSize();
+	}
+
+	/**
+	 * Resizes the receiving pool while it runs, surplus threads exit once they finish their current batch.
+	 */
+	synchronized void setReceivingThreads(int threads) {
+		// The core size may never exceed the maximum size, even in between the two calls
+		if (threads > executorService.getMaximumPoolSize()) {
+			executorService.setMaximumPoolSize(threads);
+			executorService.setCorePoolSize(threads);
+		} else {
+			executorService.setCorePoolSize(threads);
+			executorService.setMaximumPoolSize(threads);
+		}
 	}
 
 	@ExceptionHandler(HttpMessageNotReadableException.class)
 	@ResponseBody
 	public ResponseEntity<?> handleHttpMessageNotReadableException(HttpServletRequest request, Exception ex) throws IOException {
-		HttpServletRequestWrapper wrapper = (HttpServletRequestWrapper) request;
-		String body = IOUtils.toString(wrapper.getInputStream(), wrapper.getCharacterEncoding());
-		LOG.error("Error parsing request. Body:\n " + body, ex);
-		return new ResponseEntity<>("Error parsing request: " + body, HttpStatus.BAD_REQUEST);
+		long errorOffset = errorOffset(ex);
+		String excerpt = getBodyExcerpt(request, errorOffset);
+		// A misbehaving client tends to send many malformed batches, one of them per interval is enough to investigate
+		long now = System.currentTimeMillis();
+		long nextLog = nextParseErrorLogMillis.get();
+		if (now >= nextLog && nextParseErrorLogMillis.compareAndSet(nextLog, now + parseErrorLogIntervalMillis)) {
+			LOG.error("Error parsing request at byte {}, {} more parse errors since the last one logged. Body around the error:\n {}",
+					errorOffset, unloggedParseErrors.getAndSet(0), excerpt, ex);
+		} else {
+			unloggedParseErrors.incrementAndGet();
+		}
+		return new ResponseEntity<>("Error parsing request at byte " + errorOffset + ": " + excerpt, HttpStatus.BAD_REQUEST);
+	}
+
+	/**
+	 * @return the byte offset in the body where parsing failed, or -1 when the parser did not report it.
+	 */
+	private static long errorOffset(Throwable ex) {
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+			if (cause instanceof JsonProcessingException && ((JsonProcessingException) cause).getLocation() != null) {
+				JsonLocation location = ((JsonProcessingException) cause).getLocation();
+				return location.getByteOffset() >= 0 ? location.getByteOffset() : location.getCharOffset();
+			}
+		}
+		return -1;
+	}
+
+	private static String getBodyExcerpt(HttpServletRequest request, long errorOffset) throws IOException {
+		// Bodies are streamed into the parser, only a bounded part of them is kept around
+		GzippedInputStreamWrapper gzippedRequest = WebUtils.getNativeRequest(request, GzippedInputStreamWrapper.class);
+		if (gzippedRequest != null) {
+			return new String(gzippedRequest.getBodyCapture().excerpt(errorOffset), gzippedRequest.getCharacterEncoding());
+		}
+		CapturingRequestWrapper capturingRequest = WebUtils.getNativeRequest(request, CapturingRequestWrapper.class);
+		if (capturingRequest != null) {
+			return new String(capturingRequest.getBodyCapture().excerpt(errorOffset), encoding(capturingRequest));
+		}
+		BufferedBodyRequestWrapper bufferedRequest = WebUtils.getNativeRequest(request, BufferedBodyRequestWrapper.class);
+		if (bufferedRequest != null) {
+			return new String(BodyCapture.excerpt(bufferedRequest.getBody(), bufferedRequest.getBodyLength(), errorOffset), encoding(bufferedRequest));
+		}
+		byte[] unread = new byte[BodyCapture.EXCERPT_BYTES];
+		int read = IOUtils.read(request.getInputStream(), unread);
+		return new String(unread, 0, read, encoding(request));
+	}
+
+	private static String encoding(HttpServletRequest request) {
+		return request.getCharacterEncoding() != null ? request.getCharacterEncoding() : GzippedInputStreamWrapper.DEFAULT_ENCODING;
 	}
 }
@@ -12,6 +12,7 @@ import com.datorama.oss.timbermill.common.redis.RedisService;
 import com.datorama.oss.timbermill.cron.CronsRunner;
 import com.datorama.oss.timbermill.pipe.LocalOutputPipe;
 import com.datorama.oss.timbermill.unit.Event;
+import io.micrometer.core.instrument.Gauge;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,25 +21,45 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 @Service
 public class TimbermillService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(TimbermillService.class);
+	private static final String NEVER_CRON_EXPRESSION = "0 0 0 1 1 ? 2099";
 
-	private TaskIndexer taskIndexer;
+	private TaskIndexer[] taskIndexers;
 	private BlockingQueue<Event> eventsQueue;
 	private BlockingQueue<Event> overflowedQueue;
+	private PartitionedEventQueue partitionedEventsQueue;
 
 
-	private boolean keepRunning = true;
-	private boolean stoppedRunning = false;
+	private volatile boolean keepRunning = true;
+	private volatile boolean indexingPaused;
+	private volatile boolean spillingPaused;
+	private CountDownLatch stoppedRunning;
 	private long terminationTimeout;
 	private PersistenceHandler persistenceHandler;
+	private WriteAheadEventsLog writeAheadLog;
+	private QueuesSnapshot queuesSnapshot;
+	private PersistedReplayer persistedReplayer;
+	private EventsByteBudget queuesByteBudget;
+	private final List<CoalescingQueue> coalescingQueues = new ArrayList<>();
+	private final List<DrainObservingQueue> drainedQueues = new ArrayList<>();
+	private final LifecycleTracer lifecycleTracer;
 	private CronsRunner cronsRunner = new CronsRunner();
 	private int eventsMaxElement;
 
@@ -64,13 +85,32 @@ public class TimbermillService {
 							 @Value("${EVENT_MAX_ELEMTS:100000}") int eventsMaxElement,
 							 @Value("${EVENT_QUEUE_CAPACITY:10000000}") int eventsQueueCapacity,
 							 @Value("${OVERFLOWED_QUEUE_CAPACITY:10000000}") int overFlowedQueueCapacity,
+							 @Value("${EVENT_QUEUE_STRATEGY:linked}") String eventQueueStrategy,
+							 @Value("${INDEXING_PARTITIONS:1}") int indexingPartitions,
+							 @Value("${PRIORITY_LANES_ENABLED:false}") boolean priorityLanesEnabled,
+							 @Value("${PRIORITY_LANE_WEIGHTS:4,2,1}") String priorityLaneWeights,
+							 @Value("${COALESCING_WINDOW_MILLIS:0}") long coalescingWindowMillis,
+							 @Value("${COALESCING_MAX_HELD_EVENTS:1000000}") int coalescingMaxHeldEvents,
+							 @Value("${QUEUES_MAX_HEAP_RATIO:0.3}") double queuesMaxHeapRatio,
+							 @Value("${EVENTS_QUEUE_BYTES_SHARE:0.7}") double eventsQueueBytesShare,
+							 @Value("${DURABLE_ACK_ENABLED:false}") boolean durableAckEnabled,
+							 @Value("${WAL_SEGMENT_BYTES:134217728}") long walSegmentBytes,
+							 @Value("${WAL_CHECKPOINT_INTERVAL_MILLIS:1000}") long walCheckpointIntervalMillis,
+							 @Value("${QUEUES_SNAPSHOT_ENABLED:true}") boolean queuesSnapshotEnabled,
+							 @Value("${QUEUES_SNAPSHOT_CHUNK_EVENTS:100000}") int queuesSnapshotChunkEvents,
 							 @Value("${MAX_BULK_INDEX_FETCHES:3}") int maxBulkIndexFetches,
 							 @Value("${MERGING_CRON_EXPRESSION:0 0/10 * 1/1 * ? *}") String mergingCronExp,
 							 @Value("${DELETION_CRON_EXPRESSION:0 0 12 1/1 * ? *}") String deletionCronExp,
 							 @Value("${DELETION_CRON_MAX_INDICES_IN_PARALLEL:1}") int expiredMaxIndicesToDeleteInParallel,
 							 @Value("${PERSISTENCE_STRATEGY:sqlite}") String persistenceStrategy,
+							 @Value("${MMAP_SEGMENT_BYTES:67108864}") int mmapSegmentBytes,
+							 @Value("${MMAP_SYNC_WRITES:false}") boolean mmapSyncWrites,
 							 @Value("${BULK_PERSISTENT_FETCH_CRON_EXPRESSION:0 0/1 * 1/1 * ? *}") String bulkPersistentFetchCronExp,
 							 @Value("${EVENTS_PERSISTENT_FETCH_CRON_EXPRESSION:0 0/5 * 1/1 * ? *}") String eventsPersistentFetchCronExp,
+							 @Value("${CONTINUOUS_REPLAY_ENABLED:false}") boolean continuousReplayEnabled,
+							 @Value("${REPLAY_TARGET_BULK_LATENCY_MILLIS:5000}") long replayTargetBulkLatencyMillis,
+							 @Value("${REPLAY_MAX_QUEUES_FILL_RATIO:0.5}") double replayMaxQueuesFillRatio,
+							 @Value("${REPLAY_MAX_PAUSE_MILLIS:60000}") long replayMaxPauseMillis,
 							 @Value("${MAX_FETCHED_BULKS_IN_ONE_TIME:100}") int maxFetchedBulksInOneTime,
 							 @Value("${MAX_FETCHED_EVENTS_IN_ONE_TIME:10}") int maxOverflowedEventsInOneTime,
 							 @Value("${MAX_INSERT_TRIES:3}") int maxInsertTries,
@@ -94,12 +134,26 @@ public class TimbermillService {
 							 @Value("${REDIS_POOL_MAX_TOTAL:50}") int redisPoolMaxTotal,
 							 @Value("${REDIS_MAX_TRIED:3}") int redisMaxTries,
 							 @Value("${FETCH_BY_IDS_PARTITIONS:10000}") int fetchByIdsPartitions,
-                             @Value("${LIMIT_FOR_PERIOD:30000}") int limitForPeriod,
-                             @Value("${LIMIT_REFRESH_PERIOD_MINUTES:1}") int limitRefreshPeriod,
-							 @Value("${RATE_LIMITER_CAPACITY:1000000}") int rateLimiterCapacity) {
+							 LifecycleTracer lifecycleTracer) {
+		this.lifecycleTracer = lifecycleTracer;
 
-		eventsQueue = new LinkedBlockingQueue<>(eventsQueueCapacity);
-		overflowedQueue = new LinkedBlockingQueue<>(overFlowedQueueCapacity);
+		long queuesMaxBytes = (long) (Runtime.getRuntime().maxMemory() * queuesMaxHeapRatio);
+		// Off-heap queues are bounded by their capacity and -XX:MaxDirectMemorySize, not by the heap their events don't use
+		if (queuesMaxBytes > 0 && !EventQueueUtil.isOffHeap(eventQueueStrategy)) {
+			queuesByteBudget = new EventsByteBudget(queuesMaxBytes);
+		}
+		int[] laneWeights = priorityLanesEnabled ? Arrays.stream(priorityLaneWeights.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray() : null;
+		if (indexingPartitions > 1) {
+			int partitionCapacity = Math.max(1, eventsQueueCapacity / indexingPartitions);
+			double partitionBytesShare = eventsQueueBytesShare / indexingPartitions;
+			int partitionMaxHeldEvents = Math.max(1, coalescingMaxHeldEvents / indexingPartitions);
+			partitionedEventsQueue = new PartitionedEventQueue(indexingPartitions, partition -> byteWeighted(
+					coalesced(newEventsQueue(eventQueueStrategy, partitionCapacity, laneWeights), coalescingWindowMillis, partitionMaxHeldEvents), partitionBytesShare));
+			eventsQueue = partitionedEventsQueue;
+		} else {
+			eventsQueue = byteWeighted(coalesced(newEventsQueue(eventQueueStrategy, eventsQueueCapacity, laneWeights), coalescingWindowMillis, coalescingMaxHeldEvents), eventsQueueBytesShare);
+		}
+		overflowedQueue = byteWeighted(EventQueueUtil.getEventQueue(eventQueueStrategy, overFlowedQueueCapacity), 1 - eventsQueueBytesShare);
 		terminationTimeout = terminationTimeoutSeconds * 1000;
 
 		RedisService redisService = null;
@@ -109,7 +163,12 @@ public class TimbermillService {
 					redisPoolMaxTotal, redisMaxTries);
 		}
 		Map<String, Object> params = PersistenceHandler.buildPersistenceHandlerParams(maxFetchedBulksInOneTime, maxOverflowedEventsInOneTime, maxInsertTries, locationInDisk, persistenceRedisTtlInSec, redisService);
-		persistenceHandler = PersistenceHandlerUtil.getPersistenceHandler(persistenceStrategy, params);
+		if (MappedLogPersistenceHandler.MMAP.equals(persistenceStrategy)) {
+			MappedLogPersistenceHandler mappedLogPersistenceHandler = new MappedLogPersistenceHandler(maxFetchedBulksInOneTime, maxOverflowedEventsInOneTime, locationInDisk, mmapSegmentBytes, mmapSyncWrites);
+			persistenceHandler = mappedLogPersistenceHandler.isCreatedSuccessfully() ? mappedLogPersistenceHandler : null;
+		} else {
+			persistenceHandler = PersistenceHandlerUtil.getPersistenceHandler(persistenceStrategy, params);
+		}
 
 
 		ElasticsearchClient es = new ElasticsearchClient(elasticUrl, indexBulkSize, indexingThreads, awsRegion, elasticUser,
@@ -119,18 +178,109 @@ public class TimbermillService {
 		CacheConfig cacheParams = new CacheConfig(redisService, cacheRedisTtlInSeconds, maximumTasksCacheWeight, maximumOrphansCacheWeight);
 		AbstractCacheHandler cacheHandler = CacheHandlerUtil.getCacheHandler(cacheStrategy, cacheParams);
 		this.eventsMaxElement = eventsMaxElement;
-		taskIndexer = new TaskIndexer(pluginsJson, daysRotation, es, timbermillVersion, cacheHandler);
+		// Partitions share the cache handler so parents indexed by one partition are found by the others
+		taskIndexers = new TaskIndexer[Math.max(1, indexingPartitions)];
+		for (int i = 0; i < taskIndexers.length; i++) {
+			taskIndexers[i] = new TaskIndexer(pluginsJson, daysRotation, es, timbermillVersion, cacheHandler);
+		}
+		if (durableAckEnabled) {
+			openWriteAheadLog(Paths.get(locationInDisk, "wal"), walSegmentBytes, walCheckpointIntervalMillis);
+		} else if (queuesSnapshotEnabled) {
+			// The write-ahead log already replays whatever was queued, so a snapshot is only needed without it
+			queuesSnapshot = new QueuesSnapshot(Paths.get(locationInDisk, "snapshot"), queuesSnapshotChunkEvents);
+			loadQueuesSnapshot();
+		}
+		if (continuousReplayEnabled && persistenceHandler != null) {
+			persistedReplayer = new PersistedReplayer(persistenceHandler, es, this::handleReplayedEvents, this::getQueuesFillRatio,
+					replayTargetBulkLatencyMillis, replayMaxQueuesFillRatio, replayMaxPauseMillis);
+			// The replayer takes over from the persistent fetch crons
+			bulkPersistentFetchCronExp = NEVER_CRON_EXPRESSION;
+			eventsPersistentFetchCronExp = NEVER_CRON_EXPRESSION;
+		}
 		cronsRunner.runCrons(bulkPersistentFetchCronExp, eventsPersistentFetchCronExp, persistenceHandler, es, deletionCronExp,
 				eventsQueue, overflowedQueue, mergingCronExp, redisService);
+		registerGauges();
 		startQueueSpillerThread();
 		startWorkingThread();
+		if (persistedReplayer != null) {
+			persistedReplayer.start();
+		}
+	}
+
+	/**
+	 * @param laneWeights the priority lanes' weights, or null for a single FIFO queue.
+	 */
+	private static BlockingQueue<Event> newEventsQueue(String strategy, int capacity, int[] laneWeights) {
+		if (laneWeights == null) {
+			return EventQueueUtil.getEventQueue(strategy, capacity);
+		}
+		// Lanes are bounded together by the capacity, each one may hold all of it but none is sized for it
+		return new PriorityLanesQueue(capacity, laneWeights, lane -> EventQueueUtil.getLaneQueue(strategy));
+	}
+
+	/**
+	 * Bounds the queue by estimated bytes as well, when a heap budget for the queues is configured.
+	 */
+	private BlockingQueue<Event> byteWeighted(BlockingQueue<Event> queue, double budgetShare) {
+		return queuesByteBudget != null ? new ByteWeightedQueue(queue, queuesByteBudget, budgetShare) : queue;
+	}
+
+	/**
+	 * Holds each task's events together for up to the window before indexing, when a window is configured.
+	 */
+	private BlockingQueue<Event> coalesced(BlockingQueue<Event> queue, long windowMillis, int maxHeldEvents) {
+		if (windowMillis <= 0) {
+			return queue;
+		}
+		CoalescingQueue coalescingQueue = new CoalescingQueue(queue, windowMillis, maxHeldEvents);
+		coalescingQueues.add(coalescingQueue);
+		return coalescingQueue;
+	}
+
+	private void openWriteAheadLog(Path directory, long segmentBytes, long checkpointIntervalMillis) {
+		try {
+			// Events spilled from the overflowed queue are safe in the persistence handler, events still in it are not
+			writeAheadLog = new WriteAheadEventsLog(directory, segmentBytes, taskIndexers.length, checkpointIntervalMillis, overflowedQueue::isEmpty);
+			writeAheadLog.replay(this::handleEvents);
+			writeAheadLog.start();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed opening write-ahead log in " + directory, e);
+		}
+	}
+
+	private void loadQueuesSnapshot() {
+		try {
+			queuesSnapshot.load(this::handleEvents);
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Failed loading queues snapshot, it is kept on disk", e);
+		}
+	}
+
+	private void registerGauges() {
+		Gauge.builder("timbermill.events.queue.size", eventsQueue, Collection::size).register(PipelineMetrics.REGISTRY);
+		Gauge.builder("timbermill.overflowed.queue.size", overflowedQueue, Collection::size).register(PipelineMetrics.REGISTRY);
+		if (queuesByteBudget != null) {
+			Gauge.builder("timbermill.queues.bytes", queuesByteBudget, EventsByteBudget::getUsedBytes).baseUnit("bytes").register(PipelineMetrics.REGISTRY);
+		}
+		if (persistenceHandler != null) {
+			Gauge.builder("timbermill.persisted.bulks", persistenceHandler, PersistenceHandler::failedBulksAmount).register(PipelineMetrics.REGISTRY);
+			Gauge.builder("timbermill.persisted.events.lists", persistenceHandler, PersistenceHandler::overFlowedEventsListsAmount).register(PipelineMetrics.REGISTRY);
+		}
+		if (persistedReplayer != null) {
+			Gauge.builder("timbermill.replay.bulks.pause", persistedReplayer, PersistedReplayer::getBulksPauseMillis).baseUnit("milliseconds").register(PipelineMetrics.REGISTRY);
+		}
 	}
 
 	private void startQueueSpillerThread() {
+		DrainObservingQueue spilledQueue = new DrainObservingQueue(overflowedQueue, PipelineMetrics::recordSpilled,
+				spilled -> lifecycleTracer.stamp(spilled, LifecycleTracer.Stage.OVERFLOW));
+		drainedQueues.add(spilledQueue);
 		Thread spillerThread = new Thread(() -> {
 			LOG.info("Starting Queue Spiller Thread");
 			while (keepRunning) {
-				persistenceHandler.spillOverflownEvents(overflowedQueue);
+				if (!spillingPaused) {
+					persistenceHandler.spillOverflownEvents(spilledQueue);
+				}
 				try {
 					Thread.sleep(ElasticsearchUtil.THREAD_SLEEP);
 				} catch (InterruptedException e) {
@@ -142,30 +292,93 @@ public class TimbermillService {
 	}
 
 	private void startWorkingThread() {
-		Thread workingThread = new Thread(() -> {
-			LOG.info("Timbermill has started");
-			while (keepRunning) {
-				ElasticsearchUtil.drainAndIndex(eventsQueue, taskIndexer);
-			}
-			stoppedRunning = true;
-		});
-		workingThread.start();
+		stoppedRunning = new CountDownLatch(taskIndexers.length);
+		for (int i = 0; i < taskIndexers.length; i++) {
+			// Traced events of the batch being indexed, only touched by the partition's working thread
+			List<Event> tracedBatch = new ArrayList<>();
+			Runnable batchIndexed = () -> {
+				if (!tracedBatch.isEmpty()) {
+					lifecycleTracer.indexed(tracedBatch);
+					tracedBatch.clear();
+				}
+			};
+			BlockingQueue<Event> queue = partitionedEventsQueue != null ? partitionedEventsQueue.getPartition(i) : eventsQueue;
+			// drainAndIndex indexes each batch it drains before it looks at the queue again, so every batch is stamped
+			// as indexed on its own rather than once the whole backlog was indexed
+			DrainObservingQueue partitionQueue = new DrainObservingQueue(queue, PipelineMetrics::recordDrainBatch,
+					drained -> lifecycleTracer.stamp(drained, LifecycleTracer.Stage.QUEUE_WAIT, tracedBatch), batchIndexed);
+			drainedQueues.add(partitionQueue);
+			TaskIndexer partitionIndexer = taskIndexers[i];
+			int partition = i;
+			Thread workingThread = new Thread(() -> {
+				LOG.info("Timbermill has started indexing partition {}", partition);
+				while (keepRunning) {
+					if (indexingPaused) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ElasticsearchUtil.THREAD_SLEEP));
+						continue;
+					}
+					long enqueuedPosition = writeAheadLog != null ? writeAheadLog.enqueuedPosition() : 0;
+					long drainStart = System.nanoTime();
+					ElasticsearchUtil.drainAndIndex(partitionQueue, partitionIndexer);
+					if (partitionQueue.takeDrained()) {
+						// Idle passes would bury the loop's real cost under empty polls
+						PipelineMetrics.recordDrainLoop(System.nanoTime() - drainStart);
+					}
+					batchIndexed.run();
+					// drainAndIndex only returns once it saw the queue empty, so everything enqueued before it started was indexed,
+					// whatever was enqueued since. Unless the queue was closed, which only makes it look empty
+					if (writeAheadLog != null && !partitionQueue.isClosed()) {
+						writeAheadLog.indexed(partition, enqueuedPosition);
+					}
+				}
+				stoppedRunning.countDown();
+			}, "timbermill-indexing-" + partition);
+			workingThread.start();
+		}
 	}
 
 	@PreDestroy
 	public void tearDown(){
 		LOG.info("Gracefully shutting down Timbermill Server.");
 		keepRunning = false;
+		// The drain loops run until their queue is empty, so they are stopped after their current batch rather than left
+		// to index the whole backlog, which the snapshot or the write-ahead log keeps instead
+		drainedQueues.forEach(DrainObservingQueue::close);
+		if (persistedReplayer != null) {
+			persistedReplayer.close();
+		}
 		long currentTimeMillis = System.currentTimeMillis();
-		while(!stoppedRunning && !reachTerminationTimeout(currentTimeMillis)){
+		while(stoppedRunning.getCount() > 0 && !reachTerminationTimeout(currentTimeMillis)){
 			try {
-				Thread.sleep(ElasticsearchUtil.THREAD_SLEEP);
+				stoppedRunning.await(ElasticsearchUtil.THREAD_SLEEP, TimeUnit.MILLISECONDS);
 			} catch (InterruptedException ignored) {}
 		}
+		// Held events are handed out to the snapshot rather than kept back by their window
+		coalescingQueues.forEach(CoalescingQueue::flush);
+		if (queuesSnapshot != null) {
+			try {
+				queuesSnapshot.save(Arrays.asList(eventsQueue, overflowedQueue));
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Failed saving queues snapshot, queued events were lost", e);
+			}
+		}
+		if (writeAheadLog != null) {
+			try {
+				writeAheadLog.close();
+			} catch (IOException e) {
+				LOG.warn("Failed closing write-ahead log", e);
+			}
+		}
 		if (persistenceHandler != null){
 			persistenceHandler.close();
 		}
-		taskIndexer.close();
+		for (TaskIndexer taskIndexer : taskIndexers) {
+			try {
+				taskIndexer.close();
+			} catch (RuntimeException e) {
+				LOG.warn("Failed closing TaskIndexer", e);
+			}
+		}
 		cronsRunner.close();
 		LOG.info("Timbermill server was shut down.");
 	}
@@ -182,6 +395,111 @@ public class TimbermillService {
 		for (Event event : events) {
 			LocalOutputPipe.pushEventToQueues(persistenceHandler, eventsQueue, overflowedQueue, event);
 		}
+		lifecycleTracer.stamp(events, LifecycleTracer.Stage.ENQUEUE);
+	}
+
+	private void handleReplayedEvents(List<Event> events) {
+		lifecycleTracer.stamp(events, LifecycleTracer.Stage.PERSISTED);
+		handleEvents(events);
+	}
+
+	/**
+	 * Pushes a batch that was appended to the write-ahead log, a negative position means it was not.
+	 */
+	void handleEvents(Collection<Event> events, long walPosition) {
+		try {
+			handleEvents(events);
+		} finally {
+			if (walPosition >= 0) {
+				writeAheadLog.enqueued(walPosition);
+			}
+		}
+	}
+
+	boolean isDurable() {
+		return writeAheadLog != null;
+	}
+
+	/**
+	 * @return the write-ahead log position of the batch, once it was fsynced.
+	 */
+	long appendDurably(Collection<Event> events) throws IOException {
+		return writeAheadLog.append(events);
+	}
+
+	/**
+	 * Keeps the durable batch at the position from being released until a matching {@link #releaseDurably(long)},
+	 * for a part of it that is forwarded to another node.
+	 */
+	void retainDurably(long walPosition) {
+		if (walPosition >= 0) {
+			writeAheadLog.retain(walPosition);
+		}
+	}
+
+	void releaseDurably(long walPosition) {
+		if (walPosition >= 0) {
+			writeAheadLog.enqueued(walPosition);
+		}
+	}
+
+	/**
+	 * @return how full the fuller of the events queue and the overflowed queue is, between 0 and 1.
+	 */
+	double getQueuesFillRatio() {
+		return Math.max(fillRatio(eventsQueue), fillRatio(overflowedQueue));
+	}
+
+	private static double fillRatio(BlockingQueue<Event> queue) {
+		int size = queue.size();
+		int capacity = size + queue.remainingCapacity();
+		return capacity <= 0 ? 1 : (double) size / capacity;
+	}
+
+	int getEventsQueueSize() {
+		return eventsQueue.size();
+	}
+
+	int getOverflowedQueueSize() {
+		return overflowedQueue.size();
+	}
+
+	/**
+	 * @return the estimated bytes of the events in the in-memory queues, or -1 when the queues are bounded by counts only.
+	 */
+	long getQueuedBytes() {
+		return queuesByteBudget != null ? queuesByteBudget.getUsedBytes() : -1;
+	}
+
+	/**
+	 * Stops or resumes draining the events queue into Elasticsearch, events keep queueing and overflowing meanwhile.
+	 */
+	void setIndexingPaused(boolean indexingPaused) {
+		this.indexingPaused = indexingPaused;
+		LOG.info("Indexing {}", indexingPaused ? "paused" : "resumed");
+	}
+
+	boolean isIndexingPaused() {
+		return indexingPaused;
+	}
+
+	/**
+	 * Stops or resumes spilling the overflowed queue to the persistence handler, it fills up to its capacity meanwhile.
+	 */
+	void setSpillingPaused(boolean spillingPaused) {
+		this.spillingPaused = spillingPaused;
+		LOG.info("Spilling {}", spillingPaused ? "paused" : "resumed");
+	}
+
+	boolean isSpillingPaused() {
+		return spillingPaused;
+	}
+
+	/**
+	 * @return the in-memory queues' byte budget, or null when the queues are bounded by counts only.
+	 */
+	EventsByteBudget getQueuesByteBudget() {
+		return queuesByteBudget;
 	}
 
 	PersistenceHandler getPersistenceHandler() {
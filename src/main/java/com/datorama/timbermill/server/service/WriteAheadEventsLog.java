@@ -0,0 +1,347 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datorama.oss.timbermill.unit.Event;
+
+/**
+ * Write-ahead log backing the durable ingestion mode.
+ * Request threads encode their batch and hand it to a single writer thread, which writes every batch waiting at that moment
+ * and then fsyncs once for all of them (group commit), so concurrent requests share the cost of one fsync.
+ * A batch is identified by its position, the global byte offset of its record in the log.
+ * Once its events were pushed to the queues the position is released with {@link #enqueued(long)}, once per {@link #retain(long)}
+ * when parts of the batch are handed to other nodes, and indexing threads report
+ * positions they know were indexed with {@link #indexed(int, long)}. The checkpoint is the lowest position all partitions
+ * indexed, it is persisted periodically and whole segments below it are deleted. On startup records from the checkpoint on are replayed.
+ */
+final class WriteAheadEventsLog implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WriteAheadEventsLog.class);
+	private static final int HEADER_BYTES = 8;
+	private static final int MAX_GROUP_SIZE = 1024;
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	private final Path directory;
+	private final long segmentBytes;
+	private final long checkpointIntervalMillis;
+	private final BooleanSupplier canCheckpoint;
+	private final TreeMap<Long, Path> segments = new TreeMap<>();
+	private final BlockingQueue<PendingAppend> pending = new LinkedBlockingQueue<>();
+	// Positions not released yet, with the number of releases each one still waits for
+	private final ConcurrentSkipListMap<Long, AtomicInteger> inFlight = new ConcurrentSkipListMap<>();
+	private final AtomicLongArray indexedPositions;
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+	private final CRC32 crc = new CRC32();
+	private final Thread writerThread;
+	private volatile boolean running = true;
+	private volatile long writtenPosition;
+	private long checkpoint;
+	private long lastCheckpointTime;
+	private FileChannel channel;
+	private long segmentStart;
+
+	WriteAheadEventsLog(Path directory, long segmentBytes, int partitions, long checkpointIntervalMillis, BooleanSupplier canCheckpoint) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.checkpointIntervalMillis = checkpointIntervalMillis;
+		this.canCheckpoint = canCheckpoint;
+		Files.createDirectories(directory);
+		Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+		if (Files.exists(checkpointFile) && Files.size(checkpointFile) >= Long.BYTES) {
+			checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile)).getLong();
+		}
+		File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files != null) {
+			for (File file : files) {
+				segments.put(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())), file.toPath());
+			}
+		}
+		indexedPositions = new AtomicLongArray(partitions);
+		for (int i = 0; i < partitions; i++) {
+			indexedPositions.set(i, checkpoint);
+		}
+		writerThread = new Thread(this::runWriter, "timbermill-wal-writer");
+	}
+
+	/**
+	 * Hands every batch written after the checkpoint to the consumer, truncating a segment at its first torn or corrupted record.
+	 * Must be called before {@link #start()}.
+	 */
+	void replay(Consumer<List<Event>> consumer) throws IOException {
+		long replayedRecords = 0;
+		long position = checkpoint;
+		for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+			Map.Entry<Long, Path> next = segments.higherEntry(segment.getKey());
+			if (next != null && next.getKey() <= checkpoint) {
+				continue;
+			}
+			long start = segment.getKey();
+			long offset = Math.max(0, checkpoint - start);
+			try (FileChannel segmentChannel = FileChannel.open(segment.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long size = segmentChannel.size();
+				segmentChannel.position(offset);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segmentChannel), 1024 * 1024));
+				while (offset < size) {
+					byte[] record = readRecord(in, size - offset);
+					if (record == null) {
+						LOG.warn("Torn or corrupted write-ahead log record in {} at {}, truncating the segment there", segment.getValue(), offset);
+						segmentChannel.truncate(offset);
+						break;
+					}
+					consumer.accept(EventsCodec.decode(record));
+					replayedRecords++;
+					offset += HEADER_BYTES + record.length;
+				}
+			}
+			position = start + offset;
+		}
+		writtenPosition = Math.max(position, checkpoint);
+		LOG.info("Replayed {} write-ahead log batches from position {} to {}", replayedRecords, checkpoint, writtenPosition);
+	}
+
+	void start() throws IOException {
+		Map.Entry<Long, Path> last = segments.lastEntry();
+		if (last != null && last.getKey() + Files.size(last.getValue()) == writtenPosition) {
+			segmentStart = last.getKey();
+			channel = FileChannel.open(last.getValue(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} else {
+			openSegment(writtenPosition);
+		}
+		lastCheckpointTime = System.currentTimeMillis();
+		writerThread.start();
+	}
+
+	/**
+	 * Appends the batch and returns its position once it is on disk, blocking until the group commit that included it.
+	 */
+	long append(Collection<Event> events) throws IOException {
+		PendingAppend append = new PendingAppend(EventsCodec.encode(new ArrayList<>(events)));
+		// Checking and adding under the lock close() takes, so no append is added once the writer may have exited
+		synchronized (pending) {
+			if (!running) {
+				throw new IOException("Write-ahead log is closed");
+			}
+			pending.add(append);
+		}
+		try {
+			return append.future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for write-ahead log commit", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed writing to write-ahead log", e.getCause());
+		}
+	}
+
+	/**
+	 * Makes the batch at the given position wait for one more {@link #enqueued(long)} call before it is released,
+	 * for a part of it handed over to another node. Must be called before the batch's own release.
+	 */
+	void retain(long position) {
+		AtomicInteger holds = inFlight.get(position);
+		if (holds != null) {
+			holds.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Marks the batch at the given position, or one retained part of it, as pushed to the queues.
+	 */
+	void enqueued(long position) {
+		AtomicInteger holds = inFlight.get(position);
+		if (holds != null && holds.decrementAndGet() == 0) {
+			inFlight.remove(position);
+		}
+	}
+
+	/**
+	 * @return the position below which every batch was pushed to the queues.
+	 */
+	long enqueuedPosition() {
+		// Read before looking at the in flight batches, they are registered before the written position moves past them
+		long written = writtenPosition;
+		Long oldestInFlight = inFlight.ceilingKey(Long.MIN_VALUE);
+		return oldestInFlight == null ? written : Math.min(oldestInFlight, written);
+	}
+
+	/**
+	 * Reports that every batch below the position that was routed to the partition was indexed.
+	 */
+	void indexed(int partition, long position) {
+		indexedPositions.accumulateAndGet(partition, position, Math::max);
+	}
+
+	private void runWriter() {
+		List<PendingAppend> group = new ArrayList<>(MAX_GROUP_SIZE);
+		while (running || !pending.isEmpty()) {
+			try {
+				PendingAppend first = pending.poll(checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					group.add(first);
+					pending.drainTo(group, MAX_GROUP_SIZE - 1);
+					write(group);
+					group.clear();
+				}
+				if (System.currentTimeMillis() - lastCheckpointTime >= checkpointIntervalMillis) {
+					checkpoint();
+				}
+			} catch (InterruptedException e) {
+				LOG.warn("Write-ahead log writer was interrupted");
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Failed checkpointing write-ahead log", e);
+			}
+		}
+	}
+
+	private void write(List<PendingAppend> group) {
+		long position = writtenPosition;
+		try {
+			for (PendingAppend append : group) {
+				int size = HEADER_BYTES + append.record.length;
+				if (position > segmentStart && position - segmentStart + size > segmentBytes) {
+					channel.force(false);
+					channel.close();
+					openSegment(position);
+				}
+				crc.reset();
+				crc.update(append.record, 0, append.record.length);
+				header.clear();
+				header.putInt(append.record.length).putInt((int) crc.getValue()).flip();
+				ByteBuffer[] buffers = {header, ByteBuffer.wrap(append.record)};
+				while (buffers[1].hasRemaining()) {
+					channel.write(buffers);
+				}
+				append.position = position;
+				inFlight.put(position, new AtomicInteger(1));
+				position += size;
+			}
+			channel.force(false);
+			writtenPosition = position;
+			for (PendingAppend append : group) {
+				append.future.complete(append.position);
+			}
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Failed writing {} batches to write-ahead log", group.size(), e);
+			for (PendingAppend append : group) {
+				if (append.position >= 0) {
+					inFlight.remove(append.position);
+				}
+				append.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void checkpoint() throws IOException {
+		lastCheckpointTime = System.currentTimeMillis();
+		if (!canCheckpoint.getAsBoolean()) {
+			return;
+		}
+		long indexed = Long.MAX_VALUE;
+		for (int i = 0; i < indexedPositions.length(); i++) {
+			indexed = Math.min(indexed, indexedPositions.get(i));
+		}
+		if (indexed <= checkpoint) {
+			return;
+		}
+		checkpoint = indexed;
+		Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+		Files.write(temp, ByteBuffer.allocate(Long.BYTES).putLong(checkpoint).array());
+		Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Map.Entry<Long, Path> oldest = segments.firstEntry();
+		while (oldest != null && oldest.getKey() != segmentStart && segments.higherKey(oldest.getKey()) <= checkpoint) {
+			Files.deleteIfExists(oldest.getValue());
+			segments.remove(oldest.getKey());
+			oldest = segments.firstEntry();
+		}
+	}
+
+	private void openSegment(long start) throws IOException {
+		Path path = directory.resolve(String.format("%020d%s", start, SEGMENT_SUFFIX));
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		segmentStart = start;
+		segments.put(start, path);
+	}
+
+	private byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+		if (remaining < HEADER_BYTES) {
+			return null;
+		}
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length <= 0 || length > remaining - HEADER_BYTES) {
+				return null;
+			}
+			byte[] record = new byte[length];
+			in.readFully(record);
+			crc.reset();
+			crc.update(record, 0, length);
+			return (int) crc.getValue() == checksum ? record : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (pending) {
+			running = false;
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// Only left when the writer did not get to them, their requests must not wait forever
+		PendingAppend unwritten;
+		while ((unwritten = pending.poll()) != null) {
+			unwritten.future.completeExceptionally(new IOException("Write-ahead log is closed"));
+		}
+		checkpoint();
+		if (channel != null) {
+			channel.force(false);
+			channel.close();
+		}
+	}
+
+	private static final class PendingAppend {
+		private final byte[] record;
+		private final CompletableFuture<Long> future = new CompletableFuture<>();
+		private long position = -1;
+
+		PendingAppend(byte[] record) {
+			this.record = record;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.datorama.oss.timbermill.unit.InfoEvent;
+import com.datorama.oss.timbermill.unit.LogParams;
+import com.datorama.oss.timbermill.unit.StartEvent;
+import com.datorama.oss.timbermill.unit.SuccessEvent;
+import com.datorama.timbermill.server.TimbermillApplication;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Boots several servers on localhost as one cluster, each against its own {@link ElasticsearchStub}, sends task trees
+ * to all of them, starting and ending every tree through different nodes, and checks every task is indexed, all of a
+ * tree's tasks by the same node, and that a ring grown by one node moves few keys.
+ * Excluded from the regular build, run with {@code mvn test -Dtest=ClusterRoutingStressTest}, tune with
+ * stress.clusterNodes, stress.batches and stress.tasksPerBatch.
+ */
+public class ClusterRoutingStressTest {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ClusterRoutingStressTest.class);
+
+	private final int clusterNodes = Integer.getInteger("stress.clusterNodes", 3);
+	private final int batches = Integer.getInteger("stress.batches", 200);
+	private final int tasksPerBatch = Integer.getInteger("stress.tasksPerBatch", 100);
+
+	private final List<ElasticsearchStub> elasticsearchStubs = new ArrayList<>();
+	private final List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+	private final List<Path> locationsInDisk = new ArrayList<>();
+	private final List<String> nodes = new ArrayList<>();
+	private final Map<String, Set<Integer>> indexingNodes = new ConcurrentHashMap<>();
+
+	@Before
+	public void setUp() throws IOException {
+		List<Integer> ports = new ArrayList<>();
+		for (int i = 0; i < clusterNodes; i++) {
+			int port = freePort();
+			ports.add(port);
+			nodes.add("http://localhost:" + port);
+		}
+		for (int port : ports) {
+			int node = elasticsearchStubs.size();
+			ElasticsearchStub elasticsearch = new ElasticsearchStub(4);
+			elasticsearch.setIndexedDocumentListener(id -> indexingNodes.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet()).add(node));
+			elasticsearchStubs.add(elasticsearch);
+			Path locationInDisk = Files.createTempDirectory("timbermill-cluster");
+			locationsInDisk.add(locationInDisk);
+			contexts.add(new SpringApplicationBuilder(TimbermillApplication.class).properties(
+					"server.port=" + port,
+					"spring.cloud.config.enabled=false",
+					"ELASTICSEARCH_URL=" + elasticsearch.getUrl(),
+					"LOCATION_IN_DISK=" + locationInDisk,
+					"CLUSTER_NODES=" + String.join(",", nodes),
+					"CLUSTER_SELF_NODE=http://localhost:" + port).run());
+		}
+	}
+
+	@After
+	public void tearDown() {
+		contexts.forEach(ConfigurableApplicationContext::close);
+		elasticsearchStubs.forEach(ElasticsearchStub::close);
+		locationsInDisk.forEach(location -> FileUtils.deleteQuietly(location.toFile()));
+	}
+
+	@Test
+	public void everyTreeIsIndexedThroughItsOwner() throws Exception {
+		Map<String, String> rootOfTask = new HashMap<>();
+		List<List<Event>> endings = new ArrayList<>();
+		for (int batch = 0; batch < batches; batch++) {
+			List<Event> starts = new ArrayList<>();
+			List<Event> ends = new ArrayList<>();
+			for (int tree = 0; tree < tasksPerBatch / 4; tree++) {
+				String rootId = "cluster_" + UUID.randomUUID();
+				starts.add(new StartEvent(rootId, "cluster", LogParams.create(), null));
+				rootOfTask.put(rootId, rootId);
+				for (int child = 0; child < 3; child++) {
+					String childId = "cluster_child_" + UUID.randomUUID();
+					starts.add(new StartEvent(childId, "cluster_child", LogParams.create(), rootId));
+					ends.add(new InfoEvent(childId, LogParams.create().text("text", "child " + child)));
+					ends.add(new SuccessEvent(childId, LogParams.create()));
+					rootOfTask.put(childId, rootId);
+				}
+				ends.add(new SuccessEvent(rootId, LogParams.create()));
+			}
+			int status = post(nodes.get(batch % nodes.size()) + "/events/v2", TestEvents.eventsListJson(starts));
+			assertTrue("Batch was refused with " + status, status == 200);
+			endings.add(ends);
+		}
+		// Lets the ownership hints of the starts reach the tasks' homes before the tasks end
+		TimeUnit.SECONDS.sleep(1);
+		for (int batch = 0; batch < endings.size(); batch++) {
+			// Every tree ends through another node than the one it started through
+			int status = post(nodes.get((batch + 1) % nodes.size()) + "/events/v2", TestEvents.eventsListJson(endings.get(batch)));
+			assertTrue("Batch was refused with " + status, status == 200);
+		}
+		await().atMost(2, TimeUnit.MINUTES).pollInterval(1, TimeUnit.SECONDS).until(() -> indexingNodes.keySet().containsAll(rootOfTask.keySet()));
+		// Give events that went astray the time to be indexed by a second node
+		TimeUnit.SECONDS.sleep(5);
+		Map<String, Set<Integer>> treeNodes = new HashMap<>();
+		for (Map.Entry<String, String> task : rootOfTask.entrySet()) {
+			Set<Integer> taskNodes = indexingNodes.get(task.getKey());
+			assertEquals("Task " + task.getKey() + " was indexed by several nodes", 1, taskNodes.size());
+			treeNodes.computeIfAbsent(task.getValue(), key -> new HashSet<>()).addAll(taskNodes);
+		}
+		for (Map.Entry<String, Set<Integer>> tree : treeNodes.entrySet()) {
+			assertEquals("Tree " + tree.getKey() + " was indexed by several nodes", 1, tree.getValue().size());
+		}
+		LOG.info("{} tasks of {} trees sent to {} nodes were indexed in {} bulks", rootOfTask.size(), treeNodes.size(), nodes.size(),
+				elasticsearchStubs.stream().mapToLong(ElasticsearchStub::getBulkRequests).sum());
+	}
+
+	@Test
+	public void addingANodeMovesFewKeys() {
+		List<String> grown = new ArrayList<>(nodes);
+		grown.add("http://localhost:1");
+		ConsistentHashRing before = new ConsistentHashRing(nodes, 160);
+		ConsistentHashRing after = new ConsistentHashRing(grown, 160);
+		int keys = 100_000;
+		List<String> moved = Arrays.stream(new String[keys]).map(ignored -> UUID.randomUUID().toString())
+				.filter(key -> !before.ownerOf(key).equals(after.ownerOf(key))).collect(Collectors.toList());
+		double movedShare = (double) moved.size() / keys;
+		LOG.info("Adding a node to {} moved {} of the keys", nodes.size(), movedShare);
+		// Ideally 1/(N+1) of the keys, all of them to the new node
+		assertTrue(movedShare < 1.5 / grown.size());
+		assertTrue(moved.stream().allMatch(key -> after.ownerOf(key).equals("http://localhost:1")));
+	}
+
+	private static int post(String url, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/json");
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body);
+		}
+		int status = connection.getResponseCode();
+		InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (response != null) {
+			IOUtils.toByteArray(response);
+			response.close();
+		}
+		return status;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+import com.datorama.oss.timbermill.unit.Event;
+import com.datorama.oss.timbermill.unit.LogParams;
+import com.datorama.oss.timbermill.unit.StartEvent;
+import com.datorama.oss.timbermill.unit.SuccessEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingQueueTest {
+
+	private static final long WINDOW_MILLIS = 60_000;
+
+	@Test
+	public void childClosedWithinHeldParentIsHandedOutAfterParentStart() {
+		CoalescingQueue queue = new CoalescingQueue(new LinkedBlockingQueue<>(100), WINDOW_MILLIS, 100);
+		Event parentStart = new StartEvent("parent", "parent", LogParams.create(), null);
+		Event childStart = new StartEvent("child", "child", LogParams.create(), "parent");
+		Event childSuccess = new SuccessEvent("child", LogParams.create());
+		Event parentSuccess = new SuccessEvent("parent", LogParams.create());
+
+		queue.offer(parentStart);
+		queue.offer(childStart);
+		queue.offer(childSuccess);
+		List<Event> drained = new ArrayList<>();
+		queue.drainTo(drained, 100);
+		assertTrue("The closed child was handed out before its held parent: " + drained, drained.isEmpty());
+
+		queue.offer(parentSuccess);
+		queue.drainTo(drained, 100);
+		assertEquals(Arrays.asList(parentStart, childStart, childSuccess, parentSuccess), drained);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void heldEventsCountAgainstCapacity() {
+		CoalescingQueue queue = new CoalescingQueue(new LinkedBlockingQueue<>(2), WINDOW_MILLIS, 100);
+		assertTrue(queue.offer(new StartEvent("first", "first", LogParams.create(), null)));
+		assertTrue(queue.offer(new StartEvent("second", "second", LogParams.create(), null)));
+		List<Event> drained = new ArrayList<>();
+		// Both are pulled out of the delegate and held, they still take the queue's room
+		queue.drainTo(drained, 100);
+		assertTrue(drained.isEmpty());
+		assertEquals(0, queue.remainingCapacity());
+		assertTrue(!queue.offer(new StartEvent("third", "third", LogParams.create(), null)));
+	}
+}
@@ -0,0 +1,172 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP stand-in for the parts of the Elasticsearch REST API Timbermill uses.
+ * Bulk requests are answered item by item, searches return no hits and every other call is acknowledged.
+ * Bulk latency and the share of bulks rejected with 429 are configurable, so load tests can model a slow or
+ * overloaded cluster without a real one.
+ */
+public class ElasticsearchStub implements AutoCloseable {
+
+	private static final String EMPTY_SEARCH = "{\"took\":1,\"timed_out\":false,\"_scroll_id\":\"stub\",\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+			+ "\"hits\":{\"total\":{\"value\":0,\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]}}";
+	private static final String ACKNOWLEDGED = "{\"acknowledged\":true,\"shards_acknowledged\":true,\"rolled_over\":false,\"dry_run\":false,\"conditions\":{}}";
+	private static final String REJECTED = "{\"error\":{\"root_cause\":[],\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected by stub\"},\"status\":429}";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicLong bulkRequests = new AtomicLong();
+	private final AtomicLong rejectedBulkRequests = new AtomicLong();
+	private final AtomicLong indexedDocuments = new AtomicLong();
+	private final AtomicLong bulkBytes = new AtomicLong();
+	private volatile long bulkLatencyMillis;
+	private volatile double bulkRejectionRate;
+	private volatile Consumer<String> indexedDocumentListener = id -> {};
+
+	public ElasticsearchStub(int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	public void setBulkLatencyMillis(long bulkLatencyMillis) {
+		this.bulkLatencyMillis = bulkLatencyMillis;
+	}
+
+	public void setBulkRejectionRate(double bulkRejectionRate) {
+		this.bulkRejectionRate = bulkRejectionRate;
+	}
+
+	public void setIndexedDocumentListener(Consumer<String> indexedDocumentListener) {
+		this.indexedDocumentListener = indexedDocumentListener;
+	}
+
+	public long getBulkRequests() {
+		return bulkRequests.get();
+	}
+
+	public long getRejectedBulkRequests() {
+		return rejectedBulkRequests.get();
+	}
+
+	public long getIndexedDocuments() {
+		return indexedDocuments.get();
+	}
+
+	public long getBulkBytes() {
+		return bulkBytes.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			if (path.endsWith("/_bulk")) {
+				handleBulk(exchange);
+			} else if (path.contains("_search") || path.contains("_msearch")) {
+				respond(exchange, 200, path.contains("_msearch") ? "{\"took\":1,\"responses\":[" + EMPTY_SEARCH + "]}" : EMPTY_SEARCH);
+			} else if (path.endsWith("/_count")) {
+				respond(exchange, 200, "{\"count\":0,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0}}");
+			} else if ("HEAD".equals(method)) {
+				respond(exchange, 200, null);
+			} else if ("GET".equals(method) && "/".equals(path)) {
+				respond(exchange, 200, "{\"name\":\"stub\",\"cluster_name\":\"stub\",\"version\":{\"number\":\"7.8.1\"},\"tagline\":\"You Know, for Search\"}");
+			} else if ("GET".equals(method)) {
+				respond(exchange, 200, "{}");
+			} else {
+				respond(exchange, 200, ACKNOWLEDGED);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleBulk(HttpExchange exchange) throws IOException {
+		bulkRequests.incrementAndGet();
+		sleep(bulkLatencyMillis);
+		if (bulkRejectionRate > 0 && ThreadLocalRandom.current().nextDouble() < bulkRejectionRate) {
+			rejectedBulkRequests.incrementAndGet();
+			respond(exchange, 429, REJECTED);
+			return;
+		}
+		StringBuilder items = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				bulkBytes.addAndGet(line.length() + 1);
+				if (line.isEmpty()) {
+					continue;
+				}
+				JsonNode action = TestEvents.JSON_MAPPER.readTree(line);
+				String actionType = action.fieldNames().next();
+				JsonNode metadata = action.get(actionType);
+				String id = metadata.path("_id").asText("");
+				if (!"delete".equals(actionType)) {
+					String source = reader.readLine();
+					bulkBytes.addAndGet(source == null ? 0 : source.length() + 1);
+				}
+				if (items.length() > 0) {
+					items.append(',');
+				}
+				items.append("{\"").append(actionType).append("\":{\"_index\":\"").append(metadata.path("_index").asText("stub"))
+						.append("\",\"_type\":\"_doc\",\"_id\":\"").append(id)
+						.append("\",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},\"_seq_no\":0,\"_primary_term\":1,\"status\":201}}");
+				indexedDocuments.incrementAndGet();
+				indexedDocumentListener.accept(id);
+			}
+		}
+		respond(exchange, 200, "{\"took\":1,\"errors\":false,\"items\":[" + items + "]}");
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+		if (body == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,244 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.datorama.oss.timbermill.common.persistence.PersistenceHandler;
+import com.datorama.oss.timbermill.unit.Event;
+import com.datorama.timbermill.server.TimbermillApplication;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end load test: boots the server against {@link ElasticsearchStub} and drives /events or /events/v2 with
+ * concurrent producers, then reports sustained throughput, ack and event-to-indexed latencies, queue depths and overflow.
+ * Excluded from the regular build, run with {@code mvn test -Dtest=IngestStressTest} and tune with system properties:
+ * stress.producers, stress.tasksPerBatch, stress.durationSeconds, stress.endpoint (/events or /events/v2), stress.gzip,
+ * stress.spreadTasks (send each task's start, info and success events in separate consecutive requests),
+ * stress.esLatencyMillis, stress.esRejectionRate and stress.server.* for any server property (e.g. -Dstress.server.INDEXING_PARTITIONS=4).
+ */
+public class IngestStressTest {
+
+	private static final Logger LOG = LoggerFactory.getLogger(IngestStressTest.class);
+	private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+	private static final int LATENCY_SAMPLE_RATE = 100;
+	private static final String SERVER_PROPERTY_PREFIX = "stress.server.";
+
+	private final int producers = Integer.getInteger("stress.producers", 8);
+	private final int tasksPerBatch = Integer.getInteger("stress.tasksPerBatch", 1000);
+	private final int durationSeconds = Integer.getInteger("stress.durationSeconds", 60);
+	private final String endpoint = System.getProperty("stress.endpoint", "/events/v2");
+	private final boolean gzip = Boolean.parseBoolean(System.getProperty("stress.gzip", "true"));
+	private final boolean spreadTasks = Boolean.parseBoolean(System.getProperty("stress.spreadTasks", "false"));
+
+	private ElasticsearchStub elasticsearch;
+	private ConfigurableApplicationContext context;
+	private Path locationInDisk;
+	private String serverUrl;
+
+	private final Map<String, Long> sentTasks = new ConcurrentHashMap<>();
+	private final Recorder ackLatency = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+	private final Recorder indexedLatency = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+	private final AtomicLong sentEvents = new AtomicLong();
+	private final AtomicLong rejectedRequests = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+
+	@Before
+	public void setUp() throws IOException {
+		elasticsearch = new ElasticsearchStub(16);
+		elasticsearch.setBulkLatencyMillis(Long.getLong("stress.esLatencyMillis", 20));
+		elasticsearch.setBulkRejectionRate(Double.parseDouble(System.getProperty("stress.esRejectionRate", "0")));
+		elasticsearch.setIndexedDocumentListener(id -> {
+			Long sentAt = sentTasks.remove(id);
+			if (sentAt != null) {
+				indexedLatency.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - sentAt) / 1000));
+			}
+		});
+		locationInDisk = Files.createTempDirectory("timbermill-stress");
+
+		List<String> properties = new ArrayList<>();
+		properties.add("server.port=0");
+		properties.add("spring.cloud.config.enabled=false");
+		properties.add("ELASTICSEARCH_URL=" + elasticsearch.getUrl());
+		properties.add("LOCATION_IN_DISK=" + locationInDisk);
+		System.getProperties().stringPropertyNames().stream()
+				.filter(name -> name.startsWith(SERVER_PROPERTY_PREFIX))
+				.forEach(name -> properties.add(name.substring(SERVER_PROPERTY_PREFIX.length()) + "=" + System.getProperty(name)));
+		context = new SpringApplicationBuilder(TimbermillApplication.class).properties(properties.toArray(new String[0])).run();
+		serverUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (context != null) {
+			context.close();
+		}
+		if (elasticsearch != null) {
+			elasticsearch.close();
+		}
+		FileUtils.deleteQuietly(locationInDisk.toFile());
+	}
+
+	@Test
+	public void sustainedIngestion() throws Exception {
+		TimbermillService timbermillService = context.getBean(TimbermillService.class);
+		ExecutorService producersPool = Executors.newFixedThreadPool(producers);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < producers; i++) {
+			futures.add(producersPool.submit(() -> produceUntil(deadline)));
+		}
+
+		long start = System.nanoTime();
+		int maxEventsQueue = 0;
+		int maxOverflowedQueue = 0;
+		while (System.nanoTime() < deadline) {
+			Thread.sleep(1000);
+			int eventsQueueSize = timbermillService.getEventsQueueSize();
+			int overflowedQueueSize = timbermillService.getOverflowedQueueSize();
+			maxEventsQueue = Math.max(maxEventsQueue, eventsQueueSize);
+			maxOverflowedQueue = Math.max(maxOverflowedQueue, overflowedQueueSize);
+			LOG.info("sent {} events, indexed {} documents, events queue {}, overflowed queue {}",
+					sentEvents.get(), elasticsearch.getIndexedDocuments(), eventsQueueSize, overflowedQueueSize);
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		producersPool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		PersistenceHandler persistenceHandler = timbermillService.getPersistenceHandler();
+		Histogram ack = ackLatency.getIntervalHistogram();
+		Histogram indexed = indexedLatency.getIntervalHistogram();
+		LOG.info("==== {} producers, {} tasks per batch to {} (gzip {}) for {}s ====", producers, tasksPerBatch, endpoint, gzip, durationSeconds);
+		LOG.info("Sustained ingestion: {} events/sec, indexed: {} documents/sec, ES bulks: {} ({} rejected), bulk bytes: {}",
+				(long) (sentEvents.get() / seconds), (long) (elasticsearch.getIndexedDocuments() / seconds),
+				elasticsearch.getBulkRequests(), elasticsearch.getRejectedBulkRequests(), elasticsearch.getBulkBytes());
+		if (sentEvents.get() > 0) {
+			LOG.info("Per sent event: {} bulk operations, {} bulk bytes", (double) elasticsearch.getIndexedDocuments() / sentEvents.get(),
+					(double) elasticsearch.getBulkBytes() / sentEvents.get());
+		}
+		LOG.info("Ack latency ms: p50 {}, p99 {}, p999 {}, max {}", millis(ack, 50), millis(ack, 99), millis(ack, 99.9), ack.getMaxValue() / 1000.0);
+		LOG.info("Event-to-indexed latency ms: p50 {}, p99 {}, p999 {}, max {} ({} sampled tasks never indexed)",
+				millis(indexed, 50), millis(indexed, 99), millis(indexed, 99.9), indexed.getMaxValue() / 1000.0, sentTasks.size());
+		LOG.info("Max events queue: {}, max overflowed queue: {}, rejected requests: {}, failed requests: {}",
+				maxEventsQueue, maxOverflowedQueue, rejectedRequests.get(), failedRequests.get());
+		if (persistenceHandler != null) {
+			LOG.info("Persisted overflowed event lists: {}, persisted failed bulks: {}",
+					persistenceHandler.overFlowedEventsListsAmount(), persistenceHandler.failedBulksAmount());
+		}
+		assertTrue("No events were acknowledged", ack.getTotalCount() > 0);
+	}
+
+	private void produceUntil(long deadline) {
+		while (System.nanoTime() < deadline) {
+			List<Event> tasks = TestEvents.tasks(tasksPerBatch, "stress");
+			for (List<Event> events : spreadTasks ? byEventKind(tasks) : Collections.singletonList(tasks)) {
+				if (!send(events)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return whether to keep producing.
+	 */
+	private boolean send(List<Event> events) {
+		try {
+			byte[] body = "/events".equals(endpoint) ? TestEvents.eventsWrapperJson(UUID.randomUUID().toString(), events) : TestEvents.eventsListJson(events);
+			if (gzip) {
+				body = TestEvents.gzip(body);
+			}
+			long sentAt = System.nanoTime();
+			if (ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE_RATE) == 0) {
+				sentTasks.put(events.get(0).getTaskId(), sentAt);
+			}
+			int status = post(body);
+			ackLatency.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - sentAt) / 1000));
+			if (status == 429 || status == 503) {
+				rejectedRequests.incrementAndGet();
+				Thread.sleep(100);
+			} else if (status != 200) {
+				failedRequests.incrementAndGet();
+			} else {
+				sentEvents.addAndGet(events.size());
+			}
+		} catch (IOException e) {
+			failedRequests.incrementAndGet();
+			LOG.warn("Request failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits tasks made by {@link TestEvents#tasks} into their start, info and success events.
+	 */
+	private static List<List<Event>> byEventKind(List<Event> tasks) {
+		List<List<Event>> byKind = new ArrayList<>(3);
+		for (int kind = 0; kind < 3; kind++) {
+			byKind.add(new ArrayList<>(tasks.size() / 3));
+		}
+		for (int i = 0; i < tasks.size(); i++) {
+			byKind.get(i % 3).add(tasks.get(i));
+		}
+		return byKind;
+	}
+
+	private int post(byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + endpoint).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/json");
+		if (gzip) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		}
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body);
+		}
+		int status = connection.getResponseCode();
+		InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (response != null) {
+			IOUtils.toByteArray(response);
+			response.close();
+		}
+		return status;
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000.0;
+	}
+}
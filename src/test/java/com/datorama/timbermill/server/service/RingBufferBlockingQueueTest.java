@@ -0,0 +1,41 @@
+package com.datorama.timbermill.server.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferBlockingQueueTest {
+
+	@Test
+	public void holdsNoMoreThanItsCapacity() {
+		// The ring is rounded up to 8 slots
+		RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<>(5);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(5));
+		assertEquals(0, queue.remainingCapacity());
+
+		List<Integer> drained = new ArrayList<>();
+		assertEquals(2, queue.drainTo(drained, 2));
+		assertEquals(2, queue.remainingCapacity());
+		assertTrue(queue.offer(5));
+		assertTrue(queue.offer(6));
+		assertFalse(queue.offer(7));
+		queue.drainTo(drained);
+		assertEquals(7, drained.size());
+		for (int i = 0; i < drained.size(); i++) {
+			assertEquals(Integer.valueOf(i), drained.get(i));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesCapacityAboveLargestRing() {
+		new RingBufferBlockingQueue<Integer>((1 << 30) + 1);
+	}
+}
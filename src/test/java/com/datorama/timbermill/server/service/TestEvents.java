@@ -0,0 +1,59 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.datorama.oss.timbermill.unit.*;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Builds realistic event batches and their request bodies for benchmarks and stress tests.
+ */
+public final class TestEvents {
+
+	public static final ObjectMapper JSON_MAPPER = Jackson2ObjectMapperBuilder.json().build();
+	private static final ObjectWriter EVENTS_WRITER = JSON_MAPPER.writerFor(new TypeReference<List<Event>>() {});
+
+	private TestEvents() {
+	}
+
+	/**
+	 * @return {@code tasksAmount} tasks, each made of a start, an info and a success event, in that order.
+	 */
+	public static List<Event> tasks(int tasksAmount, String name) {
+		List<Event> events = new ArrayList<>(tasksAmount * 3);
+		for (int i = 0; i < tasksAmount; i++) {
+			String taskId = name + "_" + UUID.randomUUID().toString();
+			LogParams startParams = LogParams.create().string("service", "benchmark").context("iteration", String.valueOf(i));
+			events.add(new StartEvent(taskId, name, startParams, null));
+			events.add(new InfoEvent(taskId, LogParams.create().text("text", "Some longer text attached to the task number " + i).metric("number", i)));
+			events.add(new SuccessEvent(taskId, LogParams.create()));
+		}
+		return events;
+	}
+
+	public static byte[] eventsListJson(List<Event> events) throws IOException {
+		return EVENTS_WRITER.writeValueAsBytes(events);
+	}
+
+	public static byte[] eventsWrapperJson(String id, List<Event> events) throws IOException {
+		String eventsJson = EVENTS_WRITER.writeValueAsString(events);
+		return ("{\"id\":\"" + id + "\",\"events\":" + eventsJson + "}").getBytes("UTF-8");
+	}
+
+	public static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(body);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,119 @@
+package com.datorama.timbermill.server.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.datorama.timbermill.server.TimbermillApplication;
+
+import static org.awaitility.Awaitility.await;
+
+/**
+ * Boots the server in durable mode against {@link ElasticsearchStub} and keeps producing, so the partition queue is
+ * hardly ever empty, and checks that the write-ahead log still checkpoints and deletes its old segments.
+ */
+public class WriteAheadLogCheckpointTest {
+
+	private static final String SEGMENT_SUFFIX = ".wal";
+
+	private ElasticsearchStub elasticsearch;
+	private ConfigurableApplicationContext context;
+	private Path locationInDisk;
+	private String serverUrl;
+
+	@Before
+	public void setUp() throws IOException {
+		elasticsearch = new ElasticsearchStub(4);
+		locationInDisk = Files.createTempDirectory("timbermill-wal");
+		context = new SpringApplicationBuilder(TimbermillApplication.class).properties(
+				"server.port=0",
+				"spring.cloud.config.enabled=false",
+				"ELASTICSEARCH_URL=" + elasticsearch.getUrl(),
+				"LOCATION_IN_DISK=" + locationInDisk,
+				"DURABLE_ACK_ENABLED=true",
+				"WAL_SEGMENT_BYTES=65536",
+				"WAL_CHECKPOINT_INTERVAL_MILLIS=100").run();
+		serverUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (context != null) {
+			context.close();
+		}
+		if (elasticsearch != null) {
+			elasticsearch.close();
+		}
+		FileUtils.deleteQuietly(locationInDisk.toFile());
+	}
+
+	@Test
+	public void oldSegmentsAreDeletedUnderSteadyTraffic() throws Exception {
+		AtomicBoolean producing = new AtomicBoolean(true);
+		ExecutorService producer = Executors.newSingleThreadExecutor();
+		Future<?> production = producer.submit(() -> {
+			int batch = 0;
+			while (producing.get()) {
+				post(TestEvents.eventsListJson(TestEvents.tasks(100, "wal_" + batch++)));
+			}
+			return null;
+		});
+		try {
+			File walDirectory = locationInDisk.resolve("wal").toFile();
+			await().atMost(1, TimeUnit.MINUTES).until(() -> segmentStarts(walDirectory).length > 1);
+			long oldestSegment = segmentStarts(walDirectory)[0];
+			await().atMost(1, TimeUnit.MINUTES).pollInterval(200, TimeUnit.MILLISECONDS).until(() -> {
+				long[] segments = segmentStarts(walDirectory);
+				return segments.length > 0 && segments[0] > oldestSegment;
+			});
+		} finally {
+			producing.set(false);
+			production.get(1, TimeUnit.MINUTES);
+			producer.shutdown();
+		}
+	}
+
+	private static long[] segmentStarts(File walDirectory) {
+		String[] names = walDirectory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (names == null) {
+			return new long[0];
+		}
+		return Arrays.stream(names).mapToLong(name -> Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))).sorted().toArray();
+	}
+
+	private void post(byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + "/events/v2").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/json");
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body);
+		}
+		int status = connection.getResponseCode();
+		InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (response != null) {
+			IOUtils.toByteArray(response);
+			response.close();
+		}
+	}
+}